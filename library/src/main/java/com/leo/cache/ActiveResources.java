@@ -0,0 +1,256 @@
+package com.leo.cache;
+
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ImageView;
+
+import com.leo.util.Utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Images bound to views, with a count of the views showing each. They are
+ * found here even after the memory cache evicted them, so a second view
+ * asking for an image on screen doesn't decode it again, and an evicted
+ * bitmap goes to the {@link BitmapPool} only once no view shows it any more,
+ * so decoding never draws into a bitmap on screen.
+ * <p>
+ * A view counts until it is bound to another image or collected. Images
+ * handed out to callers who show them without binding are never pooled.
+ *
+ * @author Kang, Leo
+ */
+class ActiveResources {
+
+	private final BitmapPool bitmapPool;
+
+	// Images with a count, by key and by identity.
+	private final HashMap<CacheKey, Resource> byKey = new HashMap<CacheKey, Resource>();
+	private final IdentityHashMap<BitmapDrawable, Resource> byDrawable = new IdentityHashMap<BitmapDrawable, Resource>();
+
+	// What each view shows.
+	private final WeakHashMap<ImageView, Binding> bindings = new WeakHashMap<ImageView, Binding>();
+
+	// Bindings of collected views.
+	private final ReferenceQueue<ImageView> collected = new ReferenceQueue<ImageView>();
+
+	// Images shown where no binding tracks them, BitmapDrawable compares by
+	// identity.
+	private final Set<BitmapDrawable> escaped = Collections
+			.newSetFromMap(new WeakHashMap<BitmapDrawable, Boolean>());
+
+	// Lets go of the image a view showed before, after the callbacks posted
+	// to set the new one ran.
+	private final Executor releaser;
+
+	ActiveResources(BitmapPool bitmapPool) {
+		this(bitmapPool, new MainThreadExecutor());
+	}
+
+	/**
+	 * @param releaser
+	 *            runs what {@link #bind(ImageView, CacheKey, BitmapDrawable)}
+	 *            lets go of, after the work handed to it before.
+	 */
+	ActiveResources(BitmapPool bitmapPool, Executor releaser) {
+		this.bitmapPool = bitmapPool;
+		this.releaser = releaser;
+	}
+
+	/**
+	 * @return the image of key some view shows, null if none does.
+	 */
+	synchronized BitmapDrawable get(CacheKey key) {
+		final Resource resource = byKey.get(key);
+		return resource != null ? resource.drawable : null;
+	}
+
+	/**
+	 * Count drawable as shown by view, and view as no longer showing what it
+	 * was bound to before. The view shows the old image until the callback
+	 * sets the new one on the main thread, so it is let go of on the main
+	 * thread too, after what the callback posted before this call.
+	 */
+	synchronized void bind(ImageView view, CacheKey key, BitmapDrawable drawable) {
+		expungeCollected();
+		final Binding previous = bindings.get(view);
+		if (previous != null && previous.resource.drawable == drawable) {
+			return;
+		}
+		final Resource resource = acquire(key, drawable);
+		bindings.put(view, new Binding(view, resource, collected));
+		if (previous != null) {
+			previous.clear();
+			releaseLater(previous.resource);
+		}
+	}
+
+	/**
+	 * view shows no image of the loader any more, e.g. a loading image.
+	 */
+	synchronized void unbind(ImageView view) {
+		expungeCollected();
+		final Binding previous = bindings.remove(view);
+		if (previous != null) {
+			previous.clear();
+			release(previous.resource);
+		}
+	}
+
+	/**
+	 * Hold drawable while it is on its way to a view, so the cache can't
+	 * hand it to the pool meanwhile. Undone by {@link #release(BitmapDrawable)}.
+	 */
+	synchronized void hold(CacheKey key, BitmapDrawable drawable) {
+		acquire(key, drawable);
+	}
+
+	/**
+	 * drawable went to a caller who may show it untracked, keep its bitmap
+	 * out of the pool.
+	 */
+	synchronized void escape(BitmapDrawable drawable) {
+		escaped.add(drawable);
+	}
+
+	synchronized void release(BitmapDrawable drawable) {
+		final Resource resource = byDrawable.get(drawable);
+		if (resource != null) {
+			release(resource);
+		}
+	}
+
+	/**
+	 * The memory cache dropped drawable.
+	 *
+	 * @return true if no view shows it and it may go to the pool now,
+	 *         otherwise it goes there once the last view lets go.
+	 */
+	synchronized boolean onEvicted(BitmapDrawable drawable) {
+		final Resource resource = byDrawable.get(drawable);
+		if (resource == null) {
+			return !escaped.contains(drawable);
+		}
+		resource.cached = false;
+		return false;
+	}
+
+	/**
+	 * The memory cache took drawable.
+	 */
+	synchronized void onCached(BitmapDrawable drawable) {
+		final Resource resource = byDrawable.get(drawable);
+		if (resource != null) {
+			resource.cached = true;
+		}
+	}
+
+	private Resource acquire(CacheKey key, BitmapDrawable drawable) {
+		Resource resource = byDrawable.get(drawable);
+		if (resource == null) {
+			resource = new Resource(key, drawable);
+			byDrawable.put(drawable, resource);
+			byKey.put(key, resource);
+		}
+		resource.count++;
+		if (drawable instanceof RecyclingBitmapDrawable) {
+			((RecyclingBitmapDrawable) drawable).setIsDisplayed(true);
+		}
+		return resource;
+	}
+
+	private void release(Resource resource) {
+		final BitmapDrawable drawable = resource.drawable;
+		if (drawable instanceof RecyclingBitmapDrawable) {
+			// Recycles itself once neither shown nor cached.
+			((RecyclingBitmapDrawable) drawable).setIsDisplayed(false);
+		}
+		if (--resource.count > 0) {
+			return;
+		}
+		byDrawable.remove(drawable);
+		if (byKey.get(resource.key) == resource) {
+			byKey.remove(resource.key);
+		}
+		if (!resource.cached && !(drawable instanceof RecyclingBitmapDrawable)
+				&& !escaped.contains(drawable) && Utils.hasHoneycomb()
+				&& bitmapPool != null) {
+			bitmapPool.put(drawable.getBitmap());
+		}
+	}
+
+	private void releaseLater(final Resource resource) {
+		releaser.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ActiveResources.this) {
+					release(resource);
+				}
+			}
+		});
+	}
+
+	private void expungeCollected() {
+		Reference<? extends ImageView> ref;
+		while ((ref = collected.poll()) != null) {
+			final Binding binding = (Binding) ref;
+			if (!binding.released) {
+				binding.released = true;
+				release(binding.resource);
+			}
+		}
+	}
+
+	private static final class Resource {
+		final CacheKey key;
+		final BitmapDrawable drawable;
+		// Views showing it plus deliveries on their way.
+		int count;
+		// False once the memory cache dropped it.
+		boolean cached = true;
+
+		Resource(CacheKey key, BitmapDrawable drawable) {
+			this.key = key;
+			this.drawable = drawable;
+		}
+	}
+
+	private static final class MainThreadExecutor implements Executor {
+		private final Handler handler = new Handler(Looper.getMainLooper());
+
+		@Override
+		public void execute(Runnable command) {
+			handler.post(command);
+		}
+	}
+
+	/**
+	 * A view showing a resource, enqueued once the view is collected.
+	 */
+	private static final class Binding extends WeakReference<ImageView> {
+		final Resource resource;
+		// Set once the count of the view was taken off.
+		boolean released;
+
+		Binding(ImageView view, Resource resource,
+				ReferenceQueue<ImageView> queue) {
+			super(view, queue);
+			this.resource = resource;
+		}
+
+		@Override
+		public void clear() {
+			super.clear();
+			released = true;
+		}
+	}
+}
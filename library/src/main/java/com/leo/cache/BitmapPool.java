@@ -0,0 +1,293 @@
+package com.leo.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+
+import com.leo.util.Utils;
+
+/**
+ * A pool of mutable bitmaps, bounded by a byte budget, which are handed to
+ * {@link BitmapFactory.Options#inBitmap} or used as the output of a transform
+ * instead of allocating a new bitmap for every decode.
+ * <p>
+ * Bitmaps are bucketed by {@link Config} and byte size. From KitKat on, any
+ * pooled bitmap whose allocation is large enough can be reused; on Honeycomb
+ * to Jelly Bean MR2 the decoder only accepts a bitmap of exactly the same
+ * dimensions. Before Honeycomb nothing is pooled.
+ *
+ * @author Kang, Leo
+ */
+public class BitmapPool {
+
+	// Don't hand out a bitmap more than this many times larger than asked for,
+	// a small thumbnail should not pin a full screen buffer.
+	private static final int MAX_SIZE_MULTIPLE = 4;
+
+	private final HashMap<Config, TreeMap<Integer, LinkedList<Bitmap>>> mBuckets = new HashMap<Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+
+	// Pooled bitmaps in the order they were put, oldest first.
+	private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<Bitmap>();
+
+	private int mMaxSize;
+
+	private int mCurrentSize;
+
+	private int mHitCount;
+
+	private int mMissCount;
+
+	private int mEvictionCount;
+
+	/**
+	 * @param maxSize
+	 *            budget of the pool in bytes.
+	 */
+	public BitmapPool(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Offer a bitmap that is no longer referenced by anyone to the pool.
+	 *
+	 * @param bitmap
+	 * @return true if the pool took it, false if the caller still owns it.
+	 */
+	public synchronized boolean put(Bitmap bitmap) {
+		if (bitmap == null || !Utils.hasHoneycomb() || bitmap.isRecycled()
+				|| !bitmap.isMutable() || bitmap.getConfig() == null) {
+			return false;
+		}
+		final int size = MemoryCache.getBitmapSize(bitmap);
+		if (size > mMaxSize || !mOrder.add(bitmap)) {
+			return false;
+		}
+		TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(bitmap
+				.getConfig());
+		if (sizes == null) {
+			sizes = new TreeMap<Integer, LinkedList<Bitmap>>();
+			mBuckets.put(bitmap.getConfig(), sizes);
+		}
+		LinkedList<Bitmap> bucket = sizes.get(size);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			sizes.put(size, bucket);
+		}
+		bucket.addLast(bitmap);
+		mCurrentSize += size;
+		trimToSize(mMaxSize);
+		return true;
+	}
+
+	/**
+	 * Get a cleared bitmap of the given size to draw into.
+	 *
+	 * @return May be null.
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	public synchronized Bitmap get(int width, int height, Config config) {
+		Bitmap bitmap = getDirty(width, height, config);
+		if (bitmap != null) {
+			if (Utils.hasKITKAT()) {
+				bitmap.reconfigure(width, height, config);
+			}
+			bitmap.eraseColor(Color.TRANSPARENT);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Same as {@link #get(int, int, Config)}, but allocates a new bitmap when
+	 * the pool has none that fits.
+	 */
+	public Bitmap getOrCreate(int width, int height, Config config) {
+		Bitmap bitmap = get(width, height, config);
+		if (bitmap == null) {
+			bitmap = Bitmap.createBitmap(width, height, config);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Set {@link BitmapFactory.Options#inBitmap} to a pooled bitmap which can
+	 * hold the decoded image. The options must already contain the output of
+	 * a {@link BitmapFactory.Options#inJustDecodeBounds} pass and the final
+	 * inSampleSize and inPreferredConfig.
+	 *
+	 * @param options
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public void addInBitmapOptions(BitmapFactory.Options options) {
+		if (!Utils.hasHoneycomb()) {
+			return;
+		}
+		// inBitmap only works with mutable bitmaps, so force the decoder to
+		// return mutable bitmaps.
+		options.inMutable = true;
+		final int sampleSize = Math.max(1, options.inSampleSize);
+		if (!Utils.hasKITKAT() && sampleSize > 1) {
+			// Pre KitKat the decoder refuses inBitmap when sampling.
+			return;
+		}
+		final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+		final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+		final Config config = options.inPreferredConfig == null ? Config.ARGB_8888
+				: options.inPreferredConfig;
+		final Bitmap inBitmap = getDirty(width, height, config);
+		if (inBitmap != null) {
+			options.inBitmap = inBitmap;
+		}
+	}
+
+	private synchronized Bitmap getDirty(int width, int height, Config config) {
+		if (!Utils.hasHoneycomb() || width <= 0 || height <= 0
+				|| config == null) {
+			return null;
+		}
+		final int size = width * height * getBytesPerPixel(config);
+		final TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+		Bitmap result = null;
+		if (sizes != null) {
+			if (Utils.hasKITKAT()) {
+				final Integer key = sizes.ceilingKey(size);
+				if (key != null && key <= size * MAX_SIZE_MULTIPLE) {
+					result = take(sizes, key, 0, 0);
+				}
+			} else {
+				result = take(sizes, size, width, height);
+			}
+		}
+		if (result == null) {
+			mMissCount++;
+		} else {
+			mHitCount++;
+		}
+		return result;
+	}
+
+	private Bitmap take(TreeMap<Integer, LinkedList<Bitmap>> sizes, int size,
+			int width, int height) {
+		final LinkedList<Bitmap> bucket = sizes.get(size);
+		if (bucket == null) {
+			return null;
+		}
+		Bitmap result = null;
+		final Iterator<Bitmap> it = bucket.iterator();
+		while (it.hasNext()) {
+			final Bitmap candidate = it.next();
+			if (width <= 0
+					|| (candidate.getWidth() == width && candidate.getHeight() == height)) {
+				it.remove();
+				result = candidate;
+				break;
+			}
+		}
+		if (bucket.isEmpty()) {
+			sizes.remove(size);
+		}
+		if (result != null) {
+			mOrder.remove(result);
+			mCurrentSize -= size;
+		}
+		return result;
+	}
+
+	/**
+	 * Drop the oldest pooled bitmaps until the pool holds at most maxSize
+	 * bytes.
+	 *
+	 * @param maxSize
+	 */
+	public synchronized void trimToSize(int maxSize) {
+		final Iterator<Bitmap> it = mOrder.iterator();
+		while (mCurrentSize > maxSize && it.hasNext()) {
+			final Bitmap bitmap = it.next();
+			it.remove();
+			final int size = MemoryCache.getBitmapSize(bitmap);
+			final TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets
+					.get(bitmap.getConfig());
+			if (sizes != null) {
+				final LinkedList<Bitmap> bucket = sizes.get(size);
+				if (bucket != null) {
+					bucket.remove(bitmap);
+					if (bucket.isEmpty()) {
+						sizes.remove(size);
+					}
+				}
+			}
+			mCurrentSize -= size;
+			mEvictionCount++;
+		}
+	}
+
+	public synchronized void clear() {
+		trimToSize(-1);
+	}
+
+	/**
+	 * Change the budget, dropping the oldest bitmaps if it shrank.
+	 *
+	 * @param maxSize
+	 *            in bytes, 0 empties the pool and keeps it empty.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		mMaxSize = Math.max(0, maxSize);
+		trimToSize(mMaxSize);
+	}
+
+	public synchronized int getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized int getCurrentSize() {
+		return mCurrentSize;
+	}
+
+	/**
+	 * @return Number of times a pooled bitmap was handed out.
+	 */
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return Number of times nothing in the pool fitted the request.
+	 */
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final int accesses = mHitCount + mMissCount;
+		final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+		return "BitmapPool{" + "maxSize=" + mMaxSize + ", currentSize="
+				+ mCurrentSize + ", hits=" + mHitCount + ", misses="
+				+ mMissCount + ", hitRate=" + hitPercent + "%, evictions="
+				+ mEvictionCount + '}';
+	}
+
+	private static int getBytesPerPixel(Config config) {
+		if (config == Config.ARGB_8888) {
+			return 4;
+		} else if (config == Config.RGB_565 || config == Config.ARGB_4444) {
+			return 2;
+		} else if (config == Config.ALPHA_8) {
+			return 1;
+		}
+		return 4;
+	}
+}
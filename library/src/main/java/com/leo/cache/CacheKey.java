@@ -0,0 +1,117 @@
+package com.leo.cache;
+
+/**
+ * Immutable key of a decoded image: the source url plus the
+ * {@link CacheLoader.Builder} options which change the pixels of the result.
+ * Options which don't, like the loading image or cache directory, are left
+ * out so requests differing only in those share one entry.
+ * <p>
+ * The hash code is computed once, so lookups on the main thread build no
+ * strings.
+ *
+ * @author Kang, Leo
+ */
+public final class CacheKey {
+
+	static final int FLAG_SCALE = 1;
+	static final int FLAG_ROUNDED = 1 << 1;
+	static final int FLAG_GREY = 1 << 2;
+	static final int FLAG_ROTATION = 1 << 3;
+	// Decides between onLoadGIF() with the file and a decoded frame.
+	static final int FLAG_GIF = 1 << 4;
+
+	private final String url;
+	private final int width;
+	private final int height;
+	private final int flags;
+	private final int spRounded;
+	private final int hashCode;
+
+	CacheKey(String url, int width, int height, int flags, int spRounded) {
+		this.url = url;
+		this.width = width;
+		this.height = height;
+		this.flags = flags;
+		this.spRounded = spRounded;
+		int result = url.hashCode();
+		result = 31 * result + width;
+		result = 31 * result + height;
+		result = 31 * result + flags;
+		result = 31 * result + spRounded;
+		this.hashCode = result;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return true if the image of this key may stand in for the image of
+	 *         request, drawn scaled down: same source and options, GIF
+	 *         support included, decoded at least as large and, for scaled
+	 *         images, cropped to the same aspect ratio. Rounded corners of a
+	 *         fixed radius would shrink, those images only serve their own
+	 *         key.
+	 */
+	boolean canServe(CacheKey request) {
+		if (flags != request.flags || spRounded != request.spRounded
+				|| spRounded > 0 || !url.equals(request.url)) {
+			return false;
+		}
+		if (request.isFullSize()) {
+			return isFullSize();
+		}
+		final boolean scaled = (flags & FLAG_SCALE) != 0;
+		if (isFullSize()) {
+			// Not cropped to the aspect ratio of a size.
+			return !scaled;
+		}
+		if (width < request.width || height < request.height) {
+			return false;
+		}
+		return !scaled
+				|| (long) width * request.height == (long) height
+						* request.width;
+	}
+
+	/**
+	 * @return true if no size was asked for, the image is decoded whole.
+	 */
+	boolean isFullSize() {
+		return width < 0 || height < 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+		final CacheKey other = (CacheKey) o;
+		return hashCode == other.hashCode && width == other.width
+				&& height == other.height && flags == other.flags
+				&& spRounded == other.spRounded && url.equals(other.url);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheKey{" + "url=" + url + ", width=" + width + ", height="
+				+ height + ", flags=" + flags + ", spRounded=" + spRounded
+				+ '}';
+	}
+}
@@ -1,12 +1,20 @@
 package com.leo.cache;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -24,19 +32,21 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.os.Build;
 import android.os.Environment;
+import android.os.Process;
 import android.os.StatFs;
 import android.text.TextUtils;
 import android.widget.ImageView;
 
 import com.leo.common.Callback;
+import com.leo.net.HedgePolicy;
+import com.leo.net.HttpTransport;
 import com.leo.net.HttpUtils;
+import com.leo.net.UrlConnectionTransport;
 import com.leo.threadpool.ThreadPoolImpl;
 import com.leo.threadpool.IDThreadPool;
 import com.leo.threadpool.IPriorityTask;
+import com.leo.threadpool.StageExecutor;
 import com.leo.threadpool.TaskPriority;
 import com.leo.util.ImageUtil;
 import com.leo.util.MD5Util;
@@ -58,20 +68,92 @@ public class CacheLoader {
 	// Min of cache size in SD-Card
 	private final static long MIN_CACHE_SIZE = 5 * 1024 * 1024;
 
-	// Flag for enable auto clean Cache.
+	// Flag for enable auto clean Cache. If false the disk cache is not bounded
+	// by MAX_CACHE_SIZE, must be set before the first load.
 	public boolean cleanCache = true;
 
-	// Default clean cached files in SD-Card.
-	private static final float PERCENT_CLEAN = 0.4f;
+	// If true a download no view waits for any more still completes into the
+	// disk cache at background priority, otherwise it is cancelled.
+	public boolean prefetchUnusedDownloads = false;
+
+	// If true images up to MAX_READ_SIZE are downloaded into memory and
+	// decoded from there while a background thread writes them to disk.
+	// Larger ones go to disk and resume after a failure like any download.
+	public boolean decodeFromNetwork = true;
+
+	// Opens the connections of all downloads, see setHttpTransport().
+	private volatile HttpTransport httpTransport = UrlConnectionTransport
+			.getDefault();
+
+	// Shared by all downloads, so the hedge delay learns from all of them.
+	private volatile HedgePolicy hedgePolicy = new HedgePolicy(95, 100, 3000);
+
+	// Threads reading the disk cache.
+	private static final int DISK_THREADS = 4;
+
+	// Threads downloading, they spend most of their time waiting.
+	private static final int NETWORK_THREADS = 8;
+
+	// Downloads from one host running at once, the other threads stay free
+	// for other hosts. Browsers open about as many connections per host.
+	public static final int DEFAULT_DOWNLOADS_PER_HOST = 4;
+
+	private volatile int maxDownloadsPerHost = DEFAULT_DOWNLOADS_PER_HOST;
+
+	// Tasks waiting in each of the decode, transform and delivery stages
+	// before the stage feeding it has to run them itself.
+	private static final int STAGE_QUEUE_SIZE = 32;
+
+	// Most work held while paused or offline, a held download may keep a
+	// whole body in memory.
+	private static final int MAX_HELD_WORK = 2 * STAGE_QUEUE_SIZE;
+
+	// Files larger than this are decoded from disk instead of being read by
+	// the disk stage.
+	private static final long MAX_READ_SIZE = 4 * 1024 * 1024;
+
+	// Largest image downloaded when there is no disk cache to stream it to.
+	private static final int MAX_MEMORY_DOWNLOAD = 16 * 1024 * 1024;
+
+	// Attempts after the first one for timeouts, connection and server
+	// errors, waiting about RETRY_DELAY, then twice as long.
+	private static final int MAX_DOWNLOAD_RETRIES = 2;
+	private static final long RETRY_DELAY = 1000;
+
+	// How long and how many urls which failed for good are not downloaded
+	// again.
+	public static final long DEFAULT_FAILED_URL_TTL = 5 * 60 * 1000;
+	private static final int MAX_FAILED_URLS = 256;
+
+	private final FailedUrlCache failedUrls = new FailedUrlCache(
+			MAX_FAILED_URLS, DEFAULT_FAILED_URL_TTL);
+
+	private static final RetryPolicy RETRY_POLICY = new RetryPolicy(
+			MAX_DOWNLOAD_RETRIES, RETRY_DELAY, new Random());
+
+	// Bump to drop every file in the disk cache.
+	private static final int DISK_CACHE_VERSION = 1;
+
+	// Suffix of interrupted downloads kept for resuming, see HttpUtils.
+	private static final String PARTIAL_SUFFIX = ".partial";
+
+	// Interrupted downloads not resumed for this long are deleted.
+	private static final long PARTIAL_MAX_AGE = 24 * 60 * 60 * 1000L;
 
 	// Custom suffix.Mark the file is GIF.
 	public static final String GIF_END = ".gif";
 
 	protected Context mContext;
 
-	// Flag for network
+	// Flag for network, kept up to date by networkMonitor.
 	volatile static boolean networkEnable = true;
 
+	// Sizes the download pool and tells when downloads have to wait.
+	private final NetworkMonitor networkMonitor;
+
+	// Downloads started while offline, queued once the connection is back.
+	private final HeldWork offlineWork = new HeldWork(MAX_HELD_WORK);
+
 	// Flag for SD-Card
 	volatile static boolean sdcardCache = true;
 
@@ -80,23 +162,75 @@ public class CacheLoader {
 	// If table is shown.
 	protected boolean onScreen = true;
 
-	// Thread Pool to handle task. Tasks used to search local files.
+	// Thread Pool to handle task. Tasks used to search local files. Disk
+	// stage, I/O bound.
 	protected IDThreadPool searchThreadPool;
 
-	// Thread Pool to handle task. Tasks used to downlaod file.
+	// Thread Pool to handle task. Tasks used to downlaod file. Network stage,
+	// many threads which mostly wait.
 	protected IDThreadPool downloadThreadQueue;
 
-	private final MemoryCache mCache;
+	// Decode stage, one thread per core.
+	protected ExecutorService decodeExecutor;
+
+	// Transform stage (rotate, grey, round), one thread per core.
+	protected ExecutorService transformExecutor;
+
+	// Delivery stage, memory cache insert and callbacks.
+	protected ExecutorService deliveryExecutor;
+
+	// Writes images decoded from network to the disk cache.
+	protected ExecutorService diskWriteExecutor;
+
+	// Images handed to diskWriteExecutor and not yet committed, by file name.
+	private final ConcurrentHashMap<String, byte[]> pendingWrites = new ConcurrentHashMap<String, byte[]>();
+
+	// Replaced by setMemoryCachePolicy().
+	private volatile MemoryCache mCache;
+
+	// Bitmaps evicted from mCache or left over by transforms, reused by decode.
+	private final BitmapPool mBitmapPool;
+
+	// Budgets of mCache and mBitmapPool without memory pressure, in bytes.
+	private final int fullCacheSize;
+	private final int fullPoolSize;
+
+	// Shrinks mCache and mBitmapPool while the system is short of memory.
+	private final MemoryTrimmer memoryTrimmer;
+
+	// Bytes all threads may decode at the same time, replaces the global lock
+	// decode used to run under.
+	private static final DecodeBudget decodeBudget = new DecodeBudget(
+			Runtime.getRuntime().maxMemory() / 8);
+
+	// Loads running per image and variant, so views asking for the same one
+	// share a single load, see submitSearch().
+	private final ConcurrentHashMap<CacheKey, SearchTask> inFlight = new ConcurrentHashMap<CacheKey, SearchTask>();
+
+	// Work held back while loading is paused, guards the two flags below.
+	private final HeldWork pausedWork = new HeldWork(MAX_HELD_WORK);
+
+	private boolean paused;
+
+	private boolean pauseDownloads;
 
 	// Base path
 	protected String storePath;
 
+	private final Object diskCacheLock = new Object();
+
+	// Journaled LRU index of the files in storePath, see getDiskCache().
+	private DiskLruCache mDiskCache;
+
 	private boolean timeSortASC = true;
 
 	protected Resources mResources;
 
 	private final Object restartLock = new Object();
 
+	// Set by close(), guarded by restartLock.
+	private boolean loaderClosed;
+
 	private int downloadPoolMaxCore = 1;
 
 	public CacheLoader(Context context, String cachePath, boolean timeSortASC) {
@@ -106,20 +240,33 @@ public class CacheLoader {
 		downloadPoolMaxCore = Runtime.getRuntime().availableProcessors();
 		final int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 8);
 		// (int) (Runtime.getRuntime().maxMemory() >> 12);
-		mCache = new MemoryCache(cacheSize);
-		searchThreadPool = ThreadPoolImpl.newThreadPool(downloadPoolMaxCore, 20,
-                5, !timeSortASC);
-		downloadThreadQueue = ThreadPoolImpl.newThreadPool(downloadPoolMaxCore, 6,
-                2, !timeSortASC);
-
-		final ConnectivityManager cwjManager = (ConnectivityManager) context
-				.getSystemService(Context.CONNECTIVITY_SERVICE);
-		NetworkInfo info = cwjManager.getActiveNetworkInfo();
-		if (info == null) {
-			networkEnable = false;
-		} else {
-			networkEnable = info.isAvailable();
-		}
+		fullCacheSize = cacheSize;
+		fullPoolSize = cacheSize / 4;
+		mBitmapPool = new BitmapPool(fullPoolSize);
+		mCache = new MemoryCache(cacheSize, mBitmapPool);
+		restartThreadPool();
+
+		memoryTrimmer = new MemoryTrimmer(context,
+				new MemoryTrimmer.Listener() {
+					@Override
+					public void onBudgetChanged(int percent) {
+						resizeMemory(percent);
+					}
+				});
+		memoryTrimmer.start();
+
+		networkMonitor = new NetworkMonitor(context, NETWORK_THREADS,
+				new NetworkMonitor.Listener() {
+					@Override
+					public void onNetworkChanged(boolean connected,
+							int downloadThreads) {
+						resizeDownloads(downloadThreads);
+						if (connected) {
+							replayOfflineWork();
+						}
+					}
+				});
+		networkMonitor.start();
 		storePath = cachePath;
 
 		// String status = Environment.getExternalStorageState();
@@ -173,18 +320,36 @@ public class CacheLoader {
 
 	protected synchronized void doLoadRemoteImage(String url, ImageView view,
 			Builder cacheParams, Callback setImageListener) {
+		doLoadRemoteImage(url, null, view, cacheParams, setImageListener);
+	}
+
+	/**
+	 * @param mirrors
+	 *            urls serving the same image as url, the download hedges
+	 *            with them, see {@link #setHedgePolicy(HedgePolicy)}. The
+	 *            image is cached under url only, whichever url delivers it.
+	 */
+	protected synchronized void doLoadRemoteImage(String url, String[] mirrors,
+			ImageView view, Builder cacheParams, Callback setImageListener) {
 		synchronized (view) {
 			// viewPool.add(new WeakReference<ImageView>(view));
 
-			BitmapDrawable value = mCache.exist(packKey(url, cacheParams));
+			final CacheKey key = packKey(url, cacheParams);
+			BitmapDrawable value = mCache.get(key);
 			if (value != null) {
 				// view.setImageDrawable(value);
+				// The callback posts the set, bind after it so the image
+				// view shows until then is let go of after the set.
+				mCache.hold(key, value);
 				setImageListener.callback(view, value, cacheParams, true);
+				mCache.bind(view, key, value);
+				mCache.release(value);
 
 			} else if (cancelWork(false, url, view)) {
 
 				final SearchTask task = new SearchTask(getTag(), url, view,
 						cacheParams, false, setImageListener);
+				task.mirrors = mirrors;
 				Drawable ad = null;
 				if (cacheParams.loadingImage > 0) {
 					Drawable d = mResources
@@ -205,7 +370,8 @@ public class CacheLoader {
 					ad = new AsyncDrawable(mContext.getResources(), task);
 				}
 				view.setImageDrawable(ad);
-				searchThreadPool.put(tag, task, TaskPriority.UI_NORM);
+				mCache.unbind(view);
+				submitSearch(task);
 			}
 		}
 	}
@@ -215,8 +381,10 @@ public class CacheLoader {
 			Callback setImageListener) {
 		synchronized (view) {
 			// viewPool.add(new WeakReference<ImageView>(view));
-			BitmapDrawable value = mCache.exist(packKey(filename, cacheParams));
+			final CacheKey key = packKey(filename, cacheParams);
+			BitmapDrawable value = mCache.get(key);
 			if (value != null) {
+				mCache.bind(view, key, value);
 				view.setImageDrawable(value);
 			} else if (cancelWork(false, view, filename)) {
 				final SearchTask task = new SearchTask(getTag(), view,
@@ -225,12 +393,215 @@ public class CacheLoader {
 						mContext.getResources(), task) : new AsyncDrawable(
 						mContext.getResources(), loadingBitmap, task));
 				view.setImageDrawable(ad);
-				searchThreadPool.put(tag, task, TaskPriority.UI_NORM);
+				mCache.unbind(view);
+				submitSearch(task);
+			}
+		}
+	}
+
+	/**
+	 * Run task, unless a task for the same image and variant is in flight,
+	 * then task only waits for that one's result.
+	 */
+	private void submitSearch(SearchTask task) {
+		final SearchTask leader = inFlight.putIfAbsent(task.cacheKey, task);
+		if (leader != null) {
+			if (leader.join(task)) {
+				return;
+			}
+			// leader is handing out its result already.
+			inFlight.replace(task.cacheKey, leader, task);
+		}
+		searchThreadPool.put(tag, task, TaskPriority.UI_NORM);
+	}
+
+	/**
+	 * Hold decoding, transforms and delivery, e.g. while a list is flinging,
+	 * so the UI thread has the CPU to itself. Disk lookups keep running and
+	 * queued lookups run newest first, so the cells visible when the list
+	 * stops come first.
+	 * 
+	 * @param includeDownloads
+	 *            also hold new downloads, the ones running finish.
+	 */
+	public void pause(boolean includeDownloads) {
+		synchronized (pausedWork) {
+			paused = true;
+			pauseDownloads = includeDownloads;
+		}
+		searchThreadPool.setNewestFirst(true);
+	}
+
+	/**
+	 * Continue the work held by {@link #pause(boolean)}. Queued lookups and
+	 * held work of views which were bound to another image meanwhile are
+	 * dropped.
+	 */
+	public void resume() {
+		synchronized (pausedWork) {
+			if (!paused) {
+				return;
+			}
+			paused = false;
+		}
+		searchThreadPool.resetOrder();
+		// Hand the held work back from a pool thread, a full stage would make
+		// the UI thread wait.
+		searchThreadPool.put(tag, new ResumeTask(), TaskPriority.UI_MAX);
+	}
+
+	public boolean isPaused() {
+		synchronized (pausedWork) {
+			return paused;
+		}
+	}
+
+	/**
+	 * Hand work to a stage, unless loading is paused.
+	 * 
+	 * @param owner
+	 *            task the work is for, null if the work has to run even when
+	 *            nobody waits for it any more.
+	 */
+	private void runStage(ExecutorService stage, Runnable work,
+			SearchTask owner) {
+		if (!holdIfPaused(stage, work, owner, false)) {
+			stage.execute(work);
+		}
+	}
+
+	/**
+	 * @param stage
+	 *            null to run work on the resuming thread.
+	 * @return true if work was held, it runs on {@link #resume()}.
+	 */
+	private boolean holdIfPaused(ExecutorService stage, Runnable work,
+			HeldWork.Owner owner, boolean isDownload) {
+		final HeldWork.Item pushedOut;
+		synchronized (pausedWork) {
+			if (!paused || (isDownload && !pauseDownloads)) {
+				return false;
+			}
+			// A long fling rebinds many views, don't keep all their data.
+			pushedOut = pausedWork.add(stage, work, owner);
+		}
+		if (pushedOut != null) {
+			// Still wanted, let the oldest go on rather than pile up.
+			runHeld(pushedOut);
+		}
+		return true;
+	}
+
+	/**
+	 * Run held work, or end its load if no view waits for it anymore.
+	 */
+	private static void runHeld(HeldWork.Item item) {
+		if (item.owner != null && !item.owner.isActive()) {
+			item.owner.abandon();
+		} else if (item.stage != null) {
+			item.stage.execute(item.work);
+		} else {
+			item.work.run();
+		}
+	}
+
+	/**
+	 * @return true if work, starting a download, was held until the device
+	 *         is online again.
+	 */
+	private boolean holdIfOffline(Runnable work, SearchTask owner) {
+		if (networkMonitor.isConnected()) {
+			return false;
+		}
+		final HeldWork.Item pushedOut;
+		synchronized (offlineWork) {
+			pushedOut = offlineWork.add(null, work, owner);
+		}
+		if (pushedOut != null) {
+			// It could only be held again, give the oldest up.
+			pushedOut.owner.abandon();
+		}
+		return true;
+	}
+
+	/**
+	 * Start the downloads held while offline, unless their views moved on
+	 * meanwhile.
+	 */
+	private void replayOfflineWork() {
+		final List<HeldWork.Item> work;
+		synchronized (offlineWork) {
+			work = offlineWork.drain();
+		}
+		for (HeldWork.Item w : work) {
+			if (!w.owner.isActive() && !prefetchUnusedDownloads) {
+				w.owner.abandon();
+			} else if (!holdIfPaused(null, w.work, w.owner, true)) {
+				w.work.run();
+			}
+		}
+	}
+
+	/**
+	 * Run at most threads downloads at once, the background lane never more
+	 * than there are cores.
+	 */
+	private void resizeDownloads(int threads) {
+		synchronized (restartLock) {
+			downloadThreadQueue.setPoolSize(
+					Math.min(downloadPoolMaxCore, threads), threads);
+		}
+	}
+
+	public boolean isNetworkConnected() {
+		return networkMonitor.isConnected();
+	}
+
+	private class ResumeTask implements IPriorityTask {
+
+		@Override
+		public void run() {
+			// Views rebound during the pause don't need their lookups.
+			for (SearchTask task : inFlight.values()) {
+				if (!task.isActive() && searchThreadPool.cancelTask(task)) {
+					task.finish();
+				}
+			}
+			final List<HeldWork.Item> work;
+			synchronized (pausedWork) {
+				if (paused) {
+					// Paused again before this ran.
+					return;
+				}
+				work = pausedWork.drain();
+			}
+			for (HeldWork.Item w : work) {
+				runHeld(w);
 			}
 		}
+
+		@Override
+		public String getFlag() {
+			return "resume";
+		}
+
+		@Override
+		public boolean onRepeatPut(IPriorityTask newTask) {
+			return false;
+		}
+
+		@Override
+		public void isolateFlag() {
+
+		}
+
+		@Override
+		public boolean unregisterListener(int taskId) {
+			return false;
+		}
 	}
 
-	class SearchTask implements IPriorityTask {
+	class SearchTask implements IPriorityTask, HeldWork.Owner {
 		private final WeakReference<ImageView> imageViewReference;
 		private String url;
 		private final Builder mCacheParams;
@@ -244,6 +615,18 @@ public class CacheLoader {
 		private final Callback setImageListener;
 		private boolean isGIF = false;
 		private final boolean isCancled = false;
+		// Key of the result in the memory cache.
+		private CacheKey cacheKey;
+		// Tasks of other views waiting for the result of this one.
+		private ArrayList<SearchTask> followers;
+		// Set once the result is handed out, nobody can join after that.
+		private boolean closed;
+		// Task this one joined, null if it runs itself.
+		private SearchTask leader;
+		// Download this task listens to, see releaseDownload().
+		private DownloadTask download;
+		// Urls serving the same image as url, may be null.
+		private String[] mirrors;
 
 		// private boolean handleGIF = false;
 
@@ -266,6 +649,7 @@ public class CacheLoader {
 				Callback setImageListener) {
 			this(scrrenName, view, cacheParams, isBackground, setImageListener);
 			this.url = url;
+			this.cacheKey = packKey(url, cacheParams);
 			isGIF = (url.endsWith(".gif")) || (url.endsWith(".GIF"));
 		}
 
@@ -276,14 +660,104 @@ public class CacheLoader {
 			if (!TextUtils.isEmpty(filename) && filename.startsWith("file://")) {
 				this.filename = filename.replaceAll("file://", "");
 			}
+			// Same key doLoadLocalImage looks up.
+			this.cacheKey = packKey(filename, cacheParams);
 			isGIF = judgeGIF(filename);
 		}
 
-		public synchronized void cancelWork() {
-			stop = true;
-			listener = null;
+		public void cancelWork() {
+			final SearchTask owner;
+			synchronized (this) {
+				stop = true;
+				owner = leader != null ? leader : this;
+			}
+			owner.releaseDownload();
+		}
+
+		/**
+		 * Stop listening to the download once no view of the group waits for
+		 * it, the download stops when nobody else listens either.
+		 */
+		private void releaseDownload() {
+			final DownloadTask task;
+			final IDownloadHandler handler;
+			synchronized (this) {
+				if (download == null || isActive()) {
+					return;
+				}
+				task = download;
+				handler = listener;
+				download = null;
+				listener = null;
+			}
+			task.removeListener(handler);
+			// No callback comes any more, let the next request start over.
+			finish();
+		}
+
+		/**
+		 * Let task, which wants the same image and variant for another view,
+		 * share the result of this task instead of loading it again.
+		 * 
+		 * @return false if the result is handed out already, task has to run
+		 *         itself.
+		 */
+		synchronized boolean join(SearchTask task) {
+			if (closed) {
+				return false;
+			}
+			if (followers == null) {
+				followers = new ArrayList<SearchTask>(2);
+			}
+			followers.add(task);
+			task.leader = this;
+			// task may know mirrors this one doesn't, let the download use
+			// them too.
+			mirrors = mergeMirrors(url, mirrors, task.mirrors);
+			if (download != null) {
+				download.addMirrors(task.mirrors);
+			}
+			return true;
+		}
+
+		/**
+		 * @return this task and the tasks which joined it.
+		 */
+		private synchronized SearchTask[] members() {
+			final int count = followers == null ? 0 : followers.size();
+			final SearchTask[] result = new SearchTask[count + 1];
+			result[0] = this;
+			for (int i = 0; i < count; i++) {
+				result[i + 1] = followers.get(i);
+			}
+			return result;
+		}
+
+		/**
+		 * Stop taking followers, called once the result or error is about to
+		 * be handed out.
+		 * 
+		 * @return the final members.
+		 */
+		private SearchTask[] finish() {
+			final SearchTask[] result;
+			synchronized (this) {
+				closed = true;
+				result = members();
+			}
+			inFlight.remove(cacheKey, this);
+			return result;
+		}
+
+		@Override
+		public void abandon() {
+			finish();
 		}
 
+		/**
+		 * Disk stage. Only looks up and reads the file, decoding, transforms
+		 * and the callback run on their own stages.
+		 */
 		@Override
 		public void run() {
 			if (TextUtils.isEmpty(filename)) {
@@ -294,257 +768,371 @@ public class CacheLoader {
 		}
 
 		private void loadLocal() {
-			Bitmap bitmap = null;
-			if ((!stop) && (getAttachedImageView() != null) && sdcardCache
-					&& onScreen) {
+			if (isActive() && sdcardCache) {
 				// exist in SDcard
 				final File file = new File(filename);
-				if (isGIF && file.exists() && (!mCacheParams.supportGIF)
-						&& setImageListener != null) {
-					setImageListener.onLoadGIF(filename);
+				if (isGIF && file.exists() && (!mCacheParams.supportGIF)) {
+					deliverGIF(filename);
 					// gifListener.callback(filename);
 					return;
 				}
-				bitmap = isGIF ? readFromGIFFile(file) : readFromFile(file);
-				if (bitmap != null) {
-					final ImageView imageView = getAttachedImageView();
-					if (imageView != null && (!stop) && onScreen) {
-						BitmapDrawable drawable = null;
-						if (Utils.hasHoneycomb()) {
-							// Running on Honeycomb or newer, so wrap in a
-							// standard BitmapDrawable
-							drawable = new BitmapDrawable(mResources, bitmap);
-						} else {
-							// Running on Gingerbread or older, so wrap in a
-							// RecyclingBitmapDrawable
-							// which will recycle automagically
-							drawable = new RecyclingBitmapDrawable(mResources,
-									bitmap);
-						}
-						mCache.put(packKey(filename, mCacheParams), drawable);
-						if (setImageListener != null) {
-							setImageListener.callback(imageView, drawable,
-                                    mCacheParams, true);
-						}
-					} else {
-						bitmap.recycle();
-					}
+				if (file.exists()) {
+					runStage(decodeExecutor, new DecodeStage(file, readFile(file),
+							isGIF, true, null), this);
 				} else {
 					// set error image
-					final ImageView imageView = getAttachedImageView();
-					if (imageView != null && (!stop) && onScreen) {
-						if (setImageListener != null) {
-							setImageListener.onError();
-						}
-					}
+					deliverError();
 				}
+			} else {
+				finish();
 			}
 		}
 
 		private void loadRemote() {
-			Bitmap bitmap = null;
 			final String filename = getFileName(url);
-			if ((!stop) && (getAttachedImageView() != null) && sdcardCache
-					&& onScreen) {
-				// exist in SDcard
-				final File file = new File(storePath, filename);
-				if ((!mCacheParams.supportGIF) && isGIF && file.exists()
-						&& setImageListener != null) {
-					setImageListener.onLoadGIF(file.getAbsolutePath());
+			if (isActive() && sdcardCache) {
+				// exist in SDcard, looking it up marks it recently used.
+				String diskKey = filename;
+				File file = getCachedFile(diskKey);
+				if (file == null && MD5Util.hasLegacyMD5(url)) {
+					// Cached before keys were hashed from UTF-8.
+					diskKey = getLegacyFileName(url);
+					file = getCachedFile(diskKey);
+				}
+				if ((!mCacheParams.supportGIF) && isGIF && file != null) {
+					deliverGIF(file.getAbsolutePath());
+					return;
+				}
+				if (file != null) {
+					runStage(decodeExecutor, new DecodeStage(file, readFile(file),
+							isGIF, true, diskKey), this);
 					return;
 				}
-				bitmap = isGIF ? readFromGIFFile(file) : readFromFile(file);
 			}
-			if (bitmap == null) {
-				// Add download task.
-				listener = new IDownloadHandler() {
-					long lastUpdate = System.currentTimeMillis();
+			startDownload(filename);
+		}
 
-					@Override
-					public void onFinish() {
-						if ((!stop) && (getAttachedImageView() != null)
-								&& onScreen) {
-							final File file = new File(storePath, filename);
-							if ((!mCacheParams.supportGIF) && isGIF
-									&& file.exists()
-									&& (setImageListener != null)) {
-								setImageListener.onLoadGIF(file
-										.getAbsolutePath());
-								return;
-							}
-							Bitmap bitmap = readFromFile(file);
-							final ImageView imageView = getAttachedImageView();
-							if (imageView != null && (!stop) && bitmap != null
-									&& onScreen) {
-								BitmapDrawable drawable = null;
-								if (Utils.hasHoneycomb()) {
-									// Running on Honeycomb or newer, so wrap in
-									// a
-									// standard BitmapDrawable
-									drawable = new BitmapDrawable(mResources,
-											bitmap);
-								} else {
-									// Running on Gingerbread or older, so wrap
-									// in a
-									// RecyclingBitmapDrawable
-									// which will recycle automagically
-									drawable = new RecyclingBitmapDrawable(
-											mResources, bitmap);
-								}
-								mCache.put(packKey(url, mCacheParams), drawable);
-								if (setImageListener != null) {
-									setImageListener.callback(imageView,
-                                            drawable, mCacheParams, false);
-								}
-							} else {
-								if (bitmap != null) {
-									bitmap.recycle();
-								}
-							}
+		/**
+		 * Network stage. The listener only hands the result on to the decode
+		 * stage, nothing is decoded on the download thread.
+		 */
+		private void startDownload(final String filename) {
+			final boolean active = isActive();
+			if (!active && !prefetchUnusedDownloads) {
+				// The view was rebound before the lookup ran.
+				finish();
+				return;
+			}
+			if (failedUrls.contains(url)) {
+				// Failed for good a moment ago, it will fail again.
+				deliverError();
+				return;
+			}
+			// Add download task.
+			final IDownloadHandler listener = new IDownloadHandler() {
+				long lastUpdate = System.currentTimeMillis();
+
+				@Override
+				public void onFinish() {
+					if (isActive()) {
+						final File file = getCachedFile(filename);
+						if (file == null) {
+							deliverError();
+							return;
 						}
+						if ((!mCacheParams.supportGIF) && isGIF) {
+							deliverGIF(file.getAbsolutePath());
+							return;
+						}
+						runStage(decodeExecutor, new DecodeStage(file, null,
+								false, false, filename), SearchTask.this);
+					} else {
+						finish();
 					}
+				}
 
-					@Override
-					public void onError() {
-						final ImageView imageView = getAttachedImageView();
-						if (imageView != null && (!stop) && onScreen
-								&& (setImageListener != null)) {
-							setImageListener.onError();
-						}
+				@Override
+				public void onFinishData(byte[] data) {
+					if (isActive()) {
+						runStage(decodeExecutor, new DecodeStage(
+								getDiskCacheFile(storePath, filename), data,
+								false, false, filename), SearchTask.this);
+					} else {
+						finish();
 					}
+				}
 
-					@Override
-					public void onStart() {
-						final ImageView imageView = getAttachedImageView();
-						if (imageView != null && (!stop) && onScreen
-								&& (setImageListener != null)) {
-							setImageListener.onStart();
+				@Override
+				public void onError() {
+					deliverError();
+				}
+
+				@Override
+				public void onStart() {
+					for (SearchTask member : members()) {
+						if (member.isAttached()
+								&& (member.setImageListener != null)) {
+							member.setImageListener.onStart();
 						}
 					}
+				}
 
-					@Override
-					public void onProgress(int i) {
-						final long now = System.currentTimeMillis();
-						if ((now - lastUpdate) > SCHEDULE_REPORT) {
-							lastUpdate = now;
-							final ImageView imageView = getAttachedImageView();
-							if (imageView != null && (!stop) && onScreen
-									&& (setImageListener != null)) {
-								setImageListener.onProgress(i);
+				@Override
+				public void onProgress(int i) {
+					final long now = System.currentTimeMillis();
+					if ((now - lastUpdate) > SCHEDULE_REPORT) {
+						lastUpdate = now;
+						for (SearchTask member : members()) {
+							if (member.isAttached()
+									&& (member.setImageListener != null)) {
+								member.setImageListener.onProgress(i);
 							}
 						}
-
 					}
 
-					@Override
-					public void onFinishNoFile(Bitmap bitmap) {
-
-						if ((!stop) && (getAttachedImageView() != null)
-								&& onScreen) {
-							// Rough practice
-							final ImageView imageView = getAttachedImageView();
-							if (imageView != null && (!stop) && bitmap != null
-									&& onScreen) {
-								BitmapDrawable drawable = null;
-								if (Utils.hasHoneycomb()) {
-									// Running on Honeycomb or newer, so wrap in
-									// a
-									// standard BitmapDrawable
-									drawable = new BitmapDrawable(mResources,
-											bitmap);
-								} else {
-									// Running on Gingerbread or older, so wrap
-									// in a
-									// RecyclingBitmapDrawable
-									// which will recycle automagically
-									drawable = new RecyclingBitmapDrawable(
-											mResources, bitmap);
-								}
-								mCache.put(packKey(url, mCacheParams), drawable);
-								if (setImageListener != null) {
-									setImageListener.callback(imageView,
-                                            drawable, mCacheParams, false);
-								}
-							} else {
-								if (bitmap != null) {
-									bitmap.recycle();
-								}
-							}
-						}
+				}
 
+				@Override
+				public void onFinishNoFile(Bitmap bitmap) {
+					if (bitmap != null) {
+						deliver(bitmap, false);
+					} else {
+						deliverError();
 					}
-				};
-				if (setImageListener != null) {
-					setImageListener.onPreStart(getAttachedImageView(), url);
 				}
-				DownloadTask task = new DownloadTask(url, filename, listener);
-				downloadThreadQueue.put(screenName, task, TaskPriority.UI_NORM);
-				return;
-			} else {
-				final ImageView imageView = getAttachedImageView();
-				if (imageView != null && (!stop) && onScreen) {
-					BitmapDrawable drawable = null;
-					if (Utils.hasHoneycomb()) {
-						// Running on Honeycomb or newer, so wrap in
-						// a
-						// standard BitmapDrawable
-						drawable = new BitmapDrawable(mResources, bitmap);
-					} else {
-						// Running on Gingerbread or older, so wrap
-						// in a
-						// RecyclingBitmapDrawable
-						// which will recycle automagically
-						drawable = new RecyclingBitmapDrawable(mResources,
-								bitmap);
+			};
+			for (SearchTask member : members()) {
+				if (member.setImageListener != null) {
+					member.setImageListener.onPreStart(
+							member.getAttachedImageView(), url);
+				}
+			}
+			final DownloadTask task = new DownloadTask(url, filename, listener);
+			task.mirrors = mirrors;
+			final Runnable enqueue = new Runnable() {
+				@Override
+				public void run() {
+					downloadThreadQueue.put(screenName, getHost(url), task,
+							active ? TaskPriority.UI_NORM
+									: TaskPriority.BACK_MIN);
+					synchronized (SearchTask.this) {
+						// task may have been merged into one already running.
+						SearchTask.this.listener = listener;
+						download = task.getTarget();
+						// Tasks may have joined since task was made.
+						download.addMirrors(mirrors);
 					}
-					mCache.put(packKey(url, mCacheParams), drawable);
-					if (setImageListener != null) {
-
-						setImageListener.callback(imageView, drawable,
-                                mCacheParams, true);
+					if (!isActive()) {
+						releaseDownload();
 					}
-					// setImageBitmap(imageView, bitmap);
-				} else {
-					bitmap.recycle();
 				}
+			};
+			if (!holdIfOffline(enqueue, this)
+					&& !holdIfPaused(null, enqueue, this, true)) {
+				enqueue.run();
 			}
 		}
 
-		private Bitmap readFromFile(File file) {
-			Bitmap bitmap = null;
-			if (file.exists()) {
-				bitmap = decodeBitmap(file.getAbsolutePath(),
-						mCacheParams.imageWidth, mCacheParams.imageHeight,
-						mCacheParams.isScale);
-				if (mCacheParams.needRotation && bitmap != null
-						&& bitmap.getWidth() > bitmap.getHeight()) {
-					bitmap = ImageUtil.adjustPhotoRotation(bitmap, 91);
-					return bitmap;
-				}
-				// add support for grey image.
-				if (mCacheParams.greyImage && (bitmap != null)) {
-					bitmap = ImageUtil.toGrayscale(bitmap);
+		/**
+		 * Decode stage, one thread per core.
+		 */
+		private class DecodeStage implements Runnable {
+			private final File file;
+			// Content of file read by the disk stage, null to decode from file.
+			private final byte[] data;
+			private final boolean readAsGIF;
+			private final boolean isCached;
+			// Key of file in the disk cache, null for local images.
+			private final String diskKey;
+
+			DecodeStage(File file, byte[] data, boolean readAsGIF,
+					boolean isCached, String diskKey) {
+				this.file = file;
+				this.data = data;
+				this.readAsGIF = readAsGIF;
+				this.isCached = isCached;
+				this.diskKey = diskKey;
+			}
+
+			@Override
+			public void run() {
+				if (!isActive()) {
+					finish();
+					return;
 				}
-				if (mCacheParams.needRounded && (bitmap != null)) {
-					Bitmap nb = cutCircularImage(bitmap);
-					return nb;
+				final Bitmap bitmap;
+				if (readAsGIF) {
+					bitmap = readFromGIFFile(file, data);
+				} else {
+					bitmap = decodeBitmap(file.getAbsolutePath(), data,
+							mCacheParams.imageWidth, mCacheParams.imageHeight,
+							mCacheParams.isScale, mBitmapPool);
 				}
-				if ((mCacheParams.spRounded > 0) && (bitmap != null)) {
-					// Bitmap nb = cutRoundedImage(mCacheParams.spRounded,
-					// bitmap);
-					Bitmap nb = getRoundedImage(mCacheParams.spRounded, bitmap);
-					return nb;
+				if (bitmap == null) {
+					if (diskKey == null) {
+						deliverError();
+					} else if (isCached) {
+						// Entries are only published complete, so the cached
+						// image itself is broken, fetch it again.
+						removeFromDiskCache(diskKey);
+						startDownload(getFileName(url));
+					} else {
+						// Downloaded fine but not an image, e.g. an error
+						// page sent with 200. Drop it once its write is
+						// done, writes run in order, and don't fetch it
+						// again for a while.
+						failedUrls.put(url);
+						diskWriteExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								removeFromDiskCache(diskKey);
+							}
+						});
+						deliverError();
+					}
+				} else if (needTransform()) {
+					runStage(transformExecutor, new Runnable() {
+						@Override
+						public void run() {
+							if (!isActive()) {
+								finish();
+								mBitmapPool.put(bitmap);
+								return;
+							}
+							deliver(transform(bitmap), isCached);
+						}
+					}, null);
+				} else {
+					deliver(bitmap, isCached);
 				}
 			}
+		}
+
+		private boolean needTransform() {
+			return mCacheParams.needRotation || mCacheParams.greyImage
+					|| mCacheParams.needRounded || (mCacheParams.spRounded > 0);
+		}
+
+		/**
+		 * Transform stage, applies rotation, grey and rounding.
+		 */
+		private Bitmap transform(Bitmap bitmap) {
+			if (mCacheParams.needRotation
+					&& bitmap.getWidth() > bitmap.getHeight()) {
+				return recycleSource(bitmap, ImageUtil.adjustPhotoRotation(
+						bitmap, 91, mBitmapPool));
+			}
+			// add support for grey image.
+			if (mCacheParams.greyImage) {
+				bitmap = recycleSource(bitmap,
+						ImageUtil.toGrayscale(bitmap, mBitmapPool));
+			}
+			if (mCacheParams.needRounded) {
+				Bitmap nb = cutCircularImage(bitmap, mBitmapPool);
+				return recycleSource(bitmap, nb);
+			}
+			if (mCacheParams.spRounded > 0) {
+				// Bitmap nb = cutRoundedImage(mCacheParams.spRounded,
+				// bitmap);
+				Bitmap nb = getRoundedImage(mCacheParams.spRounded, bitmap,
+						mBitmapPool);
+				return recycleSource(bitmap, nb);
+			}
 			return bitmap;
 		}
 
-		private Bitmap readFromGIFFile(File file) {
+		/**
+		 * Delivery stage, puts the result into the memory cache and calls
+		 * back.
+		 */
+		private void deliver(final Bitmap bitmap, final boolean isCached) {
+			runStage(deliveryExecutor, new Runnable() {
+				@Override
+				public void run() {
+					if (isActive()) {
+						BitmapDrawable drawable = null;
+						if (Utils.hasHoneycomb()) {
+							// Running on Honeycomb or newer, so wrap in a
+							// standard BitmapDrawable
+							drawable = new BitmapDrawable(mResources, bitmap);
+						} else {
+							// Running on Gingerbread or older, so wrap in a
+							// RecyclingBitmapDrawable
+							// which will recycle automagically
+							drawable = new RecyclingBitmapDrawable(mResources,
+									bitmap);
+						}
+						// Cache before closing, so a view asking after the
+						// group closed finds it in memory. Held until bound,
+						// an eviction meanwhile must not pool it.
+						final MemoryCache cache = mCache;
+						cache.hold(cacheKey, drawable);
+						cache.put(cacheKey, drawable);
+						for (SearchTask member : finish()) {
+							final ImageView imageView = member
+									.getAttachedImageView();
+							if (imageView != null && (!member.stop) && onScreen
+									&& (member.setImageListener != null)) {
+								member.setImageListener.callback(imageView,
+										drawable, member.mCacheParams, isCached);
+								cache.bind(imageView, cacheKey, drawable);
+							}
+						}
+						cache.release(drawable);
+					} else {
+						finish();
+						if (!mBitmapPool.put(bitmap)) {
+							bitmap.recycle();
+						}
+					}
+				}
+			}, null);
+		}
+
+		private void deliverError() {
+			for (SearchTask member : finish()) {
+				if (member.isAttached() && (member.setImageListener != null)) {
+					member.setImageListener.onError();
+				}
+			}
+		}
+
+		private void deliverGIF(String path) {
+			for (SearchTask member : finish()) {
+				if (member.isAttached() && (member.setImageListener != null)) {
+					member.setImageListener.onLoadGIF(path);
+				}
+			}
+		}
+
+		/**
+		 * @return true if this task's own view still waits for it.
+		 */
+		private boolean isAttached() {
+			return (!stop) && (getAttachedImageView() != null) && onScreen;
+		}
+
+		/**
+		 * @return true if the view of this task or of any task which joined it
+		 *         still waits.
+		 */
+		@Override
+		public boolean isActive() {
+			for (SearchTask member : members()) {
+				if (member.isAttached()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private Bitmap readFromGIFFile(File file, byte[] data) {
 			Bitmap bitmap = null;
-			if (file.exists()) {
+			if (data != null || file.exists()) {
 				try {
-					GIFDecoder decoder = new GIFDecoder();
-					bitmap = decoder.read(new FileInputStream(file));
+					GIFDecoder decoder = new GIFDecoder(mBitmapPool);
+					bitmap = decoder.read(data != null ? new ByteArrayInputStream(
+							data) : new FileInputStream(file));
 					decoder = null;
 				} catch (Exception e) {
 				}
@@ -552,6 +1140,17 @@ public class CacheLoader {
 			return bitmap;
 		}
 
+		/**
+		 * Give the input of a transform back to the pool once the transform
+		 * produced a new bitmap.
+		 */
+		private Bitmap recycleSource(Bitmap source, Bitmap result) {
+			if (result != source) {
+				mBitmapPool.put(source);
+			}
+			return result;
+		}
+
 		/**
 		 * Returns the ImageView associated with this task as long as the
 		 * ImageView's task still points to this task as well. Returns null
@@ -579,7 +1178,9 @@ public class CacheLoader {
 
 		@Override
 		public boolean onRepeatPut(IPriorityTask newTask) {
-			return false;
+			return newTask instanceof SearchTask
+					&& cacheKey.equals(((SearchTask) newTask).cacheKey)
+					&& join((SearchTask) newTask);
 		}
 
 		@Override
@@ -595,8 +1196,12 @@ public class CacheLoader {
 	}
 
 	public static Bitmap cutCircularImage(Bitmap bitmap) {
+		return cutCircularImage(bitmap, null);
+	}
+
+	public static Bitmap cutCircularImage(Bitmap bitmap, BitmapPool pool) {
 		try {
-			Bitmap output = Bitmap.createBitmap(bitmap.getWidth(),
+			Bitmap output = ImageUtil.createBitmap(pool, bitmap.getWidth(),
 					bitmap.getHeight(), Config.ARGB_8888);
 			Canvas canvas = new Canvas(output);
 			final Paint paint = new Paint();
@@ -628,6 +1233,11 @@ public class CacheLoader {
 	 * @return
 	 */
 	public static Bitmap cutRoundedImage(int cornerSize, Bitmap bitmap) {
+		return cutRoundedImage(cornerSize, bitmap, null);
+	}
+
+	public static Bitmap cutRoundedImage(int cornerSize, Bitmap bitmap,
+			BitmapPool pool) {
 		try {
 			// final int th = 32;
 			// final int tp = 16;
@@ -635,7 +1245,7 @@ public class CacheLoader {
 			paint.setAntiAlias(true);
 			paint.setStyle(Paint.Style.FILL_AND_STROKE);
 			paint.setColor(Color.BLACK);
-			Bitmap output = Bitmap.createBitmap(bitmap.getWidth(),
+			Bitmap output = ImageUtil.createBitmap(pool, bitmap.getWidth(),
 					bitmap.getHeight(), Config.ARGB_8888);
 			final int bw = bitmap.getWidth();
 			final int bh = bitmap.getHeight();
@@ -673,12 +1283,17 @@ public class CacheLoader {
 	}
 
 	public static Bitmap getRoundedImage(int cornerSize, Bitmap bitmap) {
+		return getRoundedImage(cornerSize, bitmap, null);
+	}
+
+	public static Bitmap getRoundedImage(int cornerSize, Bitmap bitmap,
+			BitmapPool pool) {
 		try {
 			final Paint paint = new Paint();
 			paint.setAntiAlias(true);
 			paint.setStyle(Paint.Style.FILL_AND_STROKE);
 			paint.setColor(Color.BLACK);
-			Bitmap output = Bitmap.createBitmap(bitmap.getWidth(),
+			Bitmap output = ImageUtil.createBitmap(pool, bitmap.getWidth(),
 					bitmap.getHeight(), Config.ARGB_8888);
 			final int bw = bitmap.getWidth();
 			final int bh = bitmap.getHeight();
@@ -697,11 +1312,27 @@ public class CacheLoader {
 		return bitmap;
 	}
 
-	private class DownloadTask implements IPriorityTask {
+	private class DownloadTask implements IPriorityTask,
+			HttpUtils.ProgressListener {
 		String filename;
 		String urlString;
 		private final ArrayList<IDownloadHandler> listeners;
 		private final boolean isCancled = false;
+		// Set once the listeners were called, nobody can be added after that.
+		private boolean finished;
+		// Set once the last listener left, nobody can be added after that.
+		private boolean abandoned;
+		// Download the listeners of this one were added to, see onRepeatPut.
+		private volatile DownloadTask target;
+		private volatile boolean cancelled;
+		private volatile HttpUtils client;
+		// Urls serving the same image as urlString, may be null. Grows as
+		// requests with other mirrors join, the next attempt uses them.
+		private volatile String[] mirrors;
+		// Last percentage reported, listeners hear of every change once.
+		private int lastPercent = -1;
+		// Bytes of the body received so far, for the throughput.
+		private long received;
 
 		// IDownloadHandler tl;
 
@@ -726,100 +1357,310 @@ public class CacheLoader {
 		public boolean onRepeatPut(IPriorityTask newTask) {
 			DownloadTask nt = (DownloadTask) newTask;
 			ArrayList<IDownloadHandler> listener = nt.getListener();
-			if (listener != null) {
-				synchronized (listeners) {
+			synchronized (listeners) {
+				if (finished || abandoned) {
+					// Too late to be called back, nt has to run itself.
+					return false;
+				}
+				if (listener != null) {
 					for (IDownloadHandler l : listener) {
 						if (!listeners.contains(l)) {
 							listeners.add(l);
 						}
 					}
 				}
+				mirrors = mergeMirrors(urlString, mirrors, nt.mirrors);
 			}
+			nt.target = this;
 			return true;
 		}
 
+		/**
+		 * Let the next attempt also try more, urls a joining request knows
+		 * to serve the same image.
+		 */
+		void addMirrors(String[] more) {
+			synchronized (listeners) {
+				mirrors = mergeMirrors(urlString, mirrors, more);
+			}
+		}
+
+		/**
+		 * @return the download which calls back the listeners of this one.
+		 */
+		DownloadTask getTarget() {
+			final DownloadTask t = target;
+			return t != null ? t : this;
+		}
+
+		/**
+		 * Remove a listener. Once none is left the download is taken out of
+		 * the queue or stopped while running, unless
+		 * {@link CacheLoader#prefetchUnusedDownloads} is set, then it finishes
+		 * at background priority.
+		 */
+		void removeListener(IDownloadHandler handler) {
+			synchronized (listeners) {
+				listeners.remove(handler);
+				if (!listeners.isEmpty() || finished) {
+					return;
+				}
+				if (!prefetchUnusedDownloads) {
+					abandoned = true;
+				}
+			}
+			if (prefetchUnusedDownloads) {
+				downloadThreadQueue.changePriority(this, TaskPriority.BACK_MIN);
+			} else if (!downloadThreadQueue.cancelTask(this)) {
+				// Already running.
+				cancel();
+			}
+		}
+
+		private void cancel() {
+			cancelled = true;
+			final HttpUtils c = client;
+			if (c != null) {
+				c.cancel();
+			}
+			synchronized (this) {
+				// Ends a back off.
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Wait until the device is online again.
+		 * 
+		 * @return false if the download was cancelled meanwhile.
+		 */
+		private boolean awaitNetwork() {
+			synchronized (this) {
+				while (!cancelled && !networkMonitor.isConnected()) {
+					try {
+						// cancel() wakes this at once, a new connection
+						// within RETRY_DELAY.
+						wait(RETRY_DELAY);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+			}
+			return !cancelled;
+		}
+
+		/**
+		 * Wait before a retry, see {@link RetryPolicy}.
+		 * 
+		 * @return false if the download was cancelled meanwhile.
+		 */
+		private boolean backOff(long wait) {
+			final long end = System.currentTimeMillis() + wait;
+			synchronized (this) {
+				long left = wait;
+				while (!cancelled && left > 0) {
+					try {
+						wait(left);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+					left = end - System.currentTimeMillis();
+				}
+			}
+			return !cancelled;
+		}
+
+		/**
+		 * Use client for the download, unless it was cancelled already.
+		 */
+		private HttpUtils newClient() {
+			final HttpUtils c = new HttpUtils(httpTransport);
+			c.setProgressListener(this);
+			c.setHedging(mirrors, hedgePolicy);
+			client = c;
+			if (cancelled) {
+				c.cancel();
+			}
+			return c;
+		}
+
+		@Override
+		public void onProgress(long bytes, long total) {
+			received = bytes;
+			if (total <= 0) {
+				return;
+			}
+			final int percent = (int) (bytes * 100 / total);
+			if (percent == lastPercent) {
+				return;
+			}
+			lastPercent = percent;
+			for (IDownloadHandler tl : snapshotListeners()) {
+				if (tl != null) {
+					tl.onProgress(percent);
+				}
+			}
+		}
+
 		public ArrayList<IDownloadHandler> getListener() {
 			return listeners;
 		}
 
+		/**
+		 * Copy of the listeners, so they are called without holding the lock
+		 * onRepeatPut needs.
+		 */
+		private IDownloadHandler[] snapshotListeners() {
+			synchronized (listeners) {
+				return listeners.toArray(new IDownloadHandler[listeners.size()]);
+			}
+		}
+
+		/**
+		 * Snapshot of the listeners, after which none can be added.
+		 */
+		private IDownloadHandler[] finishListeners() {
+			synchronized (listeners) {
+				finished = true;
+				return listeners.toArray(new IDownloadHandler[listeners.size()]);
+			}
+		}
+
 		@Override
 		public void run() {
-			if (listeners != null) {
-				synchronized (listeners) {
-					for (IDownloadHandler tl : listeners) {
-						if (tl != null)
-							tl.onStart();
+			if (cancelled) {
+				return;
+			}
+			for (IDownloadHandler tl : snapshotListeners()) {
+				if (tl != null)
+					tl.onStart();
+			}
+			byte[] data = null;
+			IOException failure = null;
+			int retries = 0;
+			while (true) {
+				final long start = System.currentTimeMillis();
+				try {
+					// exist sdcard.
+					if (getDiskCache() != null) {
+						data = downloadInFile();
+					} else {
+						data = downloadInMemory();
+					}
+					failure = null;
+					// Nothing received if it came from a pending write.
+					networkMonitor.recordDownload(received,
+							System.currentTimeMillis() - start);
+					break;
+				} catch (IOException e) {
+					failure = e;
+					if (cancelled || RetryPolicy.isPermanent(e)) {
+						break;
+					}
+					if (!networkMonitor.isConnected()) {
+						// Lost the connection, try again once it is back.
+						if (!awaitNetwork()) {
+							break;
+						}
+					} else {
+						final long wait = RETRY_POLICY.delayBeforeRetry(e,
+								retries++);
+						if (wait == RetryPolicy.GIVE_UP || !backOff(wait)) {
+							break;
+						}
 					}
 				}
 			}
-			boolean storeInFile = false;
-			Bitmap bitmap = null;
-			try {
-				// exist sdcard.
-				if (storeInFile = (!TextUtils.isEmpty(storePath))) {
-					downloadInFile();
-				} else {
-					bitmap = downloadInMemory();
+			if (failure != null) {
+				if (RetryPolicy.isPermanent(failure)) {
+					failedUrls.put(urlString);
 				}
-
-			} catch (IOException e) {
-				if (listeners != null) {
-					synchronized (listeners) {
-						for (IDownloadHandler tl : listeners) {
-							if (tl != null) {
-								tl.onError();
-							}
-						}
+				for (IDownloadHandler tl : finishListeners()) {
+					if (tl != null) {
+						tl.onError();
 					}
 				}
 				return;
 			}
-			if (storeInFile && cleanCache) {
-				cleanSDcard();
-			}
-			if (listeners != null) {
-				synchronized (listeners) {
-					for (IDownloadHandler tl : listeners) {
-						if (null == tl) return;
-						if (storeInFile) {
-							tl.onFinish();
-						} else {
-							tl.onFinishNoFile(bitmap);
-						}
-					}
+			for (IDownloadHandler tl : finishListeners()) {
+				if (null == tl) continue;
+				if (data != null) {
+					tl.onFinishData(data);
+				} else {
+					tl.onFinish();
 				}
 			}
 		}
 
-		private void downloadInFile() throws IOException {
-			/**
-			 * Workaround for bug pre-Froyo, see here for more info:
-			 * http://android
-			 * -developers.blogspot.com/2011/09/androids-http-clients.html
-			 */
-			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-				System.setProperty("http.keepAlive", "false");
+		/**
+		 * @return the image, if it was small enough to be kept in memory. It
+		 *         is written to the disk cache in the background then. Null
+		 *         if it is in the disk cache already.
+		 */
+		private byte[] downloadInFile() throws IOException {
+			final byte[] pending = pendingWrites.get(filename);
+			if (pending != null) {
+				// Downloaded a moment ago, still on its way to disk.
+				return pending;
+			}
+			HttpUtils client = newClient();
+			final DiskLruCache diskCache = getDiskCache();
+			final DiskLruCache.Editor editor = diskCache.edit(filename);
+			if (editor == null) {
+				throw new IOException("Already downloading " + filename);
+			}
+			boolean committed = false;
+			try {
+				// Written next to the entry and only published by commit.
+				final File cacheFile = editor.getFile(0);
+				// Survives a failed attempt, the next one resumes it.
+				final File partial = new File(diskCache.getDirectory(),
+						filename + PARTIAL_SUFFIX);
+				if (decodeFromNetwork && !filename.endsWith(GIF_END)
+						&& !partial.exists()) {
+					// GIFs may be handed out as files, so they go to disk
+					// first. A body past MAX_READ_SIZE spills into partial.
+					final byte[] data = client.downloadInMemoryOrFile(
+							urlString, cacheFile, partial, (int) MAX_READ_SIZE);
+					if (data != null) {
+						pendingWrites.put(filename, data);
+						diskWriteExecutor.execute(new DiskWrite(diskCache,
+								editor, filename, data));
+						committed = true;
+						return data;
+					}
+				} else {
+					// GIFs, or a large body which broke off before: resume
+					// what partial holds with a Range request.
+					client.downloadInFile(urlString, cacheFile, partial,
+							mContext);
+				}
+				if (cacheFile.exists()) {
+					editor.commit();
+					committed = true;
+					diskCache.flushJournal();
+				}
+			} finally {
+				if (!committed) {
+					editor.abort();
+				}
 			}
-			HttpUtils client = new HttpUtils();
-			File cacheFile = new File(storePath, filename);
-			if (!cacheFile.exists()) {
-				cacheFile.createNewFile();
+			if (!committed) {
+				throw new IOException("Incomplete download " + urlString);
 			}
-			client.downloadInFile(urlString, cacheFile, mContext);
+			return null;
 		}
 
-		private Bitmap downloadInMemory() throws IOException {
-			/**
-			 * Workaround for bug pre-Froyo, see here for more info:
-			 * http://android
-			 * -developers.blogspot.com/2011/09/androids-http-clients.html
-			 */
-			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-				System.setProperty("http.keepAlive", "false");
-			}
-			HttpUtils client = new HttpUtils();
-			InputStream is = client.downloadInMemory(urlString, mContext);
-			return is == null ? null : BitmapFactory.decodeStream(is);
+		/**
+		 * Without a disk cache the image is kept in memory only, the decode
+		 * stage samples it down to the requested size like a cached file.
+		 */
+		private byte[] downloadInMemory() throws IOException {
+			HttpUtils client = newClient();
+			return client.downloadInMemoryOrFile(urlString, null,
+					MAX_MEMORY_DOWNLOAD);
 		}
 
 		@Override
@@ -829,11 +1670,75 @@ public class CacheLoader {
 
 		@Override
 		public boolean unregisterListener(int taskId) {
-			return false;
+			IDownloadHandler handler = null;
+			synchronized (listeners) {
+				for (IDownloadHandler l : listeners) {
+					if (System.identityHashCode(l) == taskId) {
+						handler = l;
+						break;
+					}
+				}
+			}
+			if (handler != null) {
+				removeListener(handler);
+			}
+			synchronized (listeners) {
+				return listeners.isEmpty() && !finished;
+			}
 		}
 
 	}
 
+	/**
+	 * Writes an image which was downloaded into memory to its disk cache
+	 * entry and publishes it.
+	 */
+	private class DiskWrite implements Runnable {
+		private final DiskLruCache diskCache;
+		private final DiskLruCache.Editor editor;
+		private final String filename;
+		private final byte[] data;
+
+		DiskWrite(DiskLruCache diskCache, DiskLruCache.Editor editor,
+				String filename, byte[] data) {
+			this.diskCache = diskCache;
+			this.editor = editor;
+			this.filename = filename;
+			this.data = data;
+		}
+
+		@Override
+		public void run() {
+			FileOutputStream out = null;
+			boolean committed = false;
+			try {
+				out = new FileOutputStream(editor.getFile(0));
+				out.write(data);
+				out.close();
+				out = null;
+				editor.commit();
+				committed = true;
+				diskCache.flushJournal();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
+				}
+				if (!committed) {
+					try {
+						editor.abort();
+					} catch (IOException e) {
+					}
+				}
+				pendingWrites.remove(filename, data);
+			}
+		}
+	}
+
 	/**
 	 * A custom Drawable that will be attached to the imageView while the work
 	 * is in progress. Contains a reference to the actual worker task, so that
@@ -862,17 +1767,54 @@ public class CacheLoader {
 
 	public void restartThreadPool() {
 		// searchThreadPool = null;
-		searchThreadPool = ThreadPoolImpl.newThreadPool(1, 20, 5, !timeSortASC);
+		searchThreadPool = ThreadPoolImpl.newThreadPool(downloadPoolMaxCore,
+				DISK_THREADS, 2, !timeSortASC);
 		// downloadThreadQueue = null;
-		downloadThreadQueue = ThreadPoolImpl.newThreadPool(1, 6, 5, !timeSortASC);
+		downloadThreadQueue = ThreadPoolImpl.newThreadPool(downloadPoolMaxCore,
+				NETWORK_THREADS, 2, !timeSortASC);
+		downloadThreadQueue.setGroupLimit(maxDownloadsPerHost);
+		if (networkMonitor != null) {
+			final int threads = networkMonitor.getDownloadThreads();
+			downloadThreadQueue.setPoolSize(
+					Math.min(downloadPoolMaxCore, threads), threads);
+		}
+		decodeExecutor = new StageExecutor("decode", downloadPoolMaxCore,
+				STAGE_QUEUE_SIZE, Process.THREAD_PRIORITY_BACKGROUND);
+		transformExecutor = new StageExecutor("transform",
+				downloadPoolMaxCore, STAGE_QUEUE_SIZE,
+				Process.THREAD_PRIORITY_BACKGROUND);
+		deliveryExecutor = new StageExecutor("delivery", 1, STAGE_QUEUE_SIZE,
+				Process.THREAD_PRIORITY_BACKGROUND);
+		diskWriteExecutor = new StageExecutor("disk-write", 1,
+				STAGE_QUEUE_SIZE, Process.THREAD_PRIORITY_BACKGROUND);
 	}
 
 	protected String getTag() {
 		return tag;
 	}
 
-	protected String packKey(String url, Builder builder) {
-		return builder + url;
+	protected CacheKey packKey(String url, Builder builder) {
+		int flags = 0;
+		if (builder.isScale) {
+			flags |= CacheKey.FLAG_SCALE;
+		}
+		if (builder.needRounded) {
+			flags |= CacheKey.FLAG_ROUNDED;
+		}
+		if (builder.greyImage) {
+			flags |= CacheKey.FLAG_GREY;
+		}
+		if (builder.needRotation) {
+			flags |= CacheKey.FLAG_ROTATION;
+		}
+		if (builder.supportGIF) {
+			flags |= CacheKey.FLAG_GIF;
+		}
+		// spRounded only matters if set and not overridden by needRounded.
+		final int spRounded = (builder.needRounded || builder.spRounded <= 0) ? 0
+				: builder.spRounded;
+		return new CacheKey(url, builder.imageWidth, builder.imageHeight,
+				flags, spRounded);
 	}
 
 	protected boolean cancelWork(boolean isBackground, String url,
@@ -934,20 +1876,34 @@ public class CacheLoader {
 		return key;
 	}
 
-	private static synchronized Bitmap decodeBitmap(String filename, int width,
-			int height, boolean isScale) {
+	/**
+	 * File name url was cached under before {@link #getFileName(String)}
+	 * hashed the UTF-8 encoding. Only differs for non ASCII urls.
+	 */
+	public static String getLegacyFileName(String url) {
+		String key = MD5Util.getLegacyStringMD5(url);
+		if (url.endsWith(".gif") || (url.endsWith(".GIF"))) {
+			key += GIF_END;
+		}
+		return key;
+	}
+
+	/**
+	 * Decode an image sampled down to the requested size.
+	 * 
+	 * @param filename
+	 * @param data
+	 *            content of filename if it was read already, may be null.
+	 */
+	private Bitmap decodeBitmap(String filename, byte[] data, int width,
+			int height, boolean isScale, BitmapPool pool) {
 		// First decode with inJustDecodeBounds=true to check dimensions
 		final BitmapFactory.Options options = new BitmapFactory.Options();
 		options.inJustDecodeBounds = true;
 		// final String filename = file.getAbsolutePath();
-		BitmapFactory.decodeFile(filename, options);
+		decode(filename, data, options);
 		if (options.outWidth < 1 || options.outHeight < 1) {
-			String fn = filename;
-			File ft = new File(fn);
-			if (ft.exists()) {
-				ft.delete();
-				return null;
-			}
+			return null;
 		}
 
 		// Calculate inSampleSize
@@ -958,19 +1914,91 @@ public class CacheLoader {
 		// Decode bitmap with inSampleSize set
 		options.inJustDecodeBounds = false;
 		options.inPreferredConfig = Config.RGB_565;
-		Bitmap bm1 = null;
+		// Wait until the decoded bitmap fits next to the ones other threads
+		// are decoding, this may raise inSampleSize.
+		final long reserved = decodeBudget.acquire(options);
+		if (reserved < 0) {
+			return null;
+		}
 		try {
-			bm1 = BitmapFactory.decodeFile(filename, options);
-		} catch (OutOfMemoryError oom) {
-			oom.printStackTrace();
-			System.gc();
+			if (pool != null) {
+				pool.addInBitmapOptions(options);
+			}
+			Bitmap bm1 = null;
+			try {
+				try {
+					bm1 = decode(filename, data, options);
+				} catch (IllegalArgumentException e) {
+					if (options.inBitmap == null) {
+						throw e;
+					}
+					// The pooled bitmap can't hold this image, decode without
+					// it.
+					pool.put(options.inBitmap);
+					options.inBitmap = null;
+					bm1 = decode(filename, data, options);
+				}
+			} catch (OutOfMemoryError oom) {
+				oom.printStackTrace();
+				if (pool != null) {
+					pool.clear();
+				}
+				System.gc();
+			}
+			if (bm1 == null) {
+				return null;
+			}
+			if (!isScale) {
+				return bm1;
+			}
+			return scaleBitmap(bm1, width, height, pool);
+		} finally {
+			decodeBudget.release(reserved);
+		}
+	}
+
+	private static Bitmap decode(String filename, byte[] data,
+			BitmapFactory.Options options) {
+		if (data != null) {
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
 		}
-		if (bm1 == null) {
+		return BitmapFactory.decodeFile(filename, options);
+	}
+
+	/**
+	 * Read a file for the decode stage.
+	 * 
+	 * @return May be null, if the file is missing or too large to hold in
+	 *         memory. It is decoded from the file then.
+	 */
+	private static byte[] readFile(File file) {
+		final long length = file.length();
+		if (length <= 0 || length > MAX_READ_SIZE) {
 			return null;
 		}
-		if (!isScale) {
-			return bm1;
+		final byte[] data = new byte[(int) length];
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int offset = 0;
+			int count;
+			while (offset < data.length
+					&& (count = in.read(data, offset, data.length - offset)) != -1) {
+				offset += count;
+			}
+			return offset == data.length ? data : null;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			DiskLruCache.closeQuietly(in);
 		}
+	}
+
+	/**
+	 * Crop or scale a decoded bitmap down to the requested size.
+	 */
+	private static Bitmap scaleBitmap(Bitmap bm1, int width, int height,
+			BitmapPool pool) {
 		int queryWidth = width;
 		int queryHeight = height;
 		int resWidth = bm1.getWidth();
@@ -986,27 +2014,47 @@ public class CacheLoader {
 				int cutW = queryWidth * cutH / queryHeight;
 				// int cutY = 0;
 				int cutX = resWidth / 2 - cutW / 2;
-				bm = Bitmap.createBitmap(bm1, cutX, 0, cutW, cutH);
+				bm = cropBitmap(bm1, cutX, 0, cutW, cutH, pool);
 			} else if (scaleWidth >= 1 && scaleHeight < 1) {
 				int cutW = resWidth;
 				int cutH = queryHeight * cutW / queryWidth;
 				// int cutX = 0;
 				// int cutY = resHeight / 2 - cutH / 2;
-				bm = Bitmap.createBitmap(bm1, 0, 0, cutW, cutH);
+				bm = cropBitmap(bm1, 0, 0, cutW, cutH, pool);
 			} else {
 				float scale = scaleHeight < scaleWidth ? scaleWidth
 						: scaleHeight;
 				Matrix matrix = new Matrix();
 				matrix.postScale(scale, scale);
-				bm = Bitmap.createBitmap(bm1, 0, 0, resWidth, resHeight,
-						matrix, true);
+				bm = ImageUtil.createBitmap(pool,
+						Math.max(1, Math.round(resWidth * scale)),
+						Math.max(1, Math.round(resHeight * scale)),
+						bm1.getConfig());
+				new Canvas(bm).drawBitmap(bm1, matrix, new Paint(
+						Paint.FILTER_BITMAP_FLAG));
 			}
 		} catch (Exception e) {
 			bm = bm1;
 		}
+		if (bm != bm1 && pool != null) {
+			pool.put(bm1);
+		}
 		return bm;
 	}
 
+	private static Bitmap cropBitmap(Bitmap source, int x, int y, int width,
+			int height, BitmapPool pool) {
+		if (x == 0 && y == 0 && width == source.getWidth()
+				&& height == source.getHeight()) {
+			return source;
+		}
+		final Bitmap output = ImageUtil.createBitmap(pool, width, height,
+				source.getConfig());
+		new Canvas(output).drawBitmap(source, new Rect(x, y, x + width, y
+				+ height), new Rect(0, 0, width, height), null);
+		return output;
+	}
+
 	private static int calculateOriginal(BitmapFactory.Options options,
 			int reqWidth, int reqHeight) {
 		int inSampleSize = 1;
@@ -1031,73 +2079,340 @@ public class CacheLoader {
 		return inSampleSize;
 	}
 
-	private void cleanSDcard() {
-		new Thread() {
-			@Override
-			public void run() {
-				File dir = new File(storePath);
-				File[] files = dir.listFiles();
-				if (files == null) {
-					return;
-				}
-				long dirSize = 0;
-				for (File tf : files) {
-					dirSize += tf.length();
+	public void reserLoader() {
+		synchronized (restartLock) {
+			if (loaderClosed) {
+				return;
+			}
+			this.onScreen = false;
+			mCache.cleanCache();
+			stopWork();
+			// downloadThreadQueue.stopQueue(tag);
+			restartThreadPool();
+			this.onScreen = true;
+		}
+	}
+
+	/**
+	 * Stop loading for good and stop following the connection and memory
+	 * pressure. Call it when the loader is not needed anymore, nothing can
+	 * be loaded with it after.
+	 */
+	public void close() {
+		synchronized (restartLock) {
+			if (loaderClosed) {
+				return;
+			}
+			loaderClosed = true;
+			this.onScreen = false;
+			networkMonitor.stop();
+			memoryTrimmer.stop();
+			stopWork();
+		}
+	}
+
+	/**
+	 * Stop the pools and drop the work queued or held for them.
+	 */
+	private void stopWork() {
+		searchThreadPool.shutdownNow();
+		downloadThreadQueue.shutdownNow();
+		decodeExecutor.shutdownNow();
+		transformExecutor.shutdownNow();
+		deliveryExecutor.shutdownNow();
+		// Let pending writes finish, they hold disk cache editors.
+		diskWriteExecutor.shutdown();
+		inFlight.clear();
+		synchronized (pausedWork) {
+			pausedWork.clear();
+			paused = false;
+		}
+		synchronized (offlineWork) {
+			offlineWork.clear();
+		}
+	}
+
+	public int cleanDiskCache() {
+		int result = 0;
+		synchronized (diskCacheLock) {
+			File dir = new File(storePath);
+			File[] files = dir.listFiles();
+			if (files != null) {
+				result = files.length;
+			}
+			try {
+				if (mDiskCache != null) {
+					mDiskCache.delete();
+				} else {
+					DiskLruCache.deleteContents(dir);
 				}
-				long sdFree = (getUsableSpace(dir)) - dirSize;
-				if ((sdFree < MIN_CACHE_SIZE) || (dirSize >= MAX_CACHE_SIZE)) {
-					cleanCacheInDisk(files);
-					// notify user to clean Cache.
-					// CleanSDDialog.launch(context);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			// Opened again on next use.
+			mDiskCache = null;
+		}
+		return result;
+	}
+
+	/**
+	 * Open the disk cache in storePath on first use. Must not be called on the
+	 * main thread, opening reads the journal.
+	 * 
+	 * @return May be null, if there is no storePath or it can't be opened.
+	 */
+	protected DiskLruCache getDiskCache() {
+		synchronized (diskCacheLock) {
+			if ((mDiskCache == null || mDiskCache.isClosed())
+					&& !TextUtils.isEmpty(storePath)) {
+				final File dir = new File(storePath);
+				final boolean created = !new File(dir,
+						DiskLruCache.JOURNAL_FILE).exists();
+				try {
+					dir.mkdirs();
+					mDiskCache = DiskLruCache.open(dir, DISK_CACHE_VERSION, 1,
+							cleanCache ? MAX_CACHE_SIZE : Long.MAX_VALUE);
+					if (created) {
+						migrateFlatFiles(mDiskCache);
+					}
+					deleteStalePartials(dir);
+				} catch (IOException e) {
+					e.printStackTrace();
+					mDiskCache = null;
 				}
 			}
-		}.start();
+			return mDiskCache;
+		}
 	}
 
-	private static synchronized int cleanCacheInDisk(File... files) {
-		// File[] files = dir.listFiles();
+	/**
+	 * Partial downloads are not part of the journal, so they are not bounded
+	 * by the cache size. Drop the ones nobody came back for.
+	 */
+	private static void deleteStalePartials(File dir) {
+		final File[] files = dir.listFiles();
 		if (files == null) {
-			return 0;
+			return;
 		}
-		int result = 0;
-		int removeFactor = (int) ((PERCENT_CLEAN * files.length) + 1);
-		Arrays.sort(files, new FileLastModifSort());
-		for (int i = 0; i < removeFactor; i++) {
-			if (files[i].delete()) {
-				result++;
+		final long oldest = System.currentTimeMillis() - PARTIAL_MAX_AGE;
+		for (File file : files) {
+			if (file.getName().indexOf(PARTIAL_SUFFIX) >= 0
+					&& file.lastModified() < oldest) {
+				file.delete();
 			}
 		}
-		return result;
 	}
 
-	public void reserLoader() {
-		synchronized (restartLock) {
-			this.onScreen = false;
-			mCache.cleanCache();
-			searchThreadPool.shutdownNow();
-			downloadThreadQueue.shutdownNow();
-			// downloadThreadQueue.stopQueue(tag);
-			restartThreadPool();
-			this.onScreen = true;
+	/**
+	 * Files cached before the disk cache had a journal are named after their
+	 * key. Add them to the journal instead of downloading them again.
+	 */
+	private static void migrateFlatFiles(DiskLruCache diskCache)
+			throws IOException {
+		final File[] files = diskCache.getDirectory().listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			final String name = file.getName();
+			// Skip the journal and anything already named like an entry.
+			if (!file.isFile() || name.startsWith(DiskLruCache.JOURNAL_FILE)
+					|| name.indexOf(' ') >= 0 || name.endsWith(".tmp")
+					|| name.indexOf(PARTIAL_SUFFIX) >= 0
+					|| name.matches(".*\\.\\d+")) {
+				continue;
+			}
+			final DiskLruCache.Editor editor = diskCache.edit(name);
+			if (editor != null) {
+				if (file.renameTo(editor.getFile(0))) {
+					editor.commit();
+				} else {
+					editor.abort();
+				}
+			}
 		}
+		diskCache.flushJournal();
 	}
 
-	public int cleanDiskCache() {
-		int result = 0;
-		File dir = new File(storePath);
-		File[] files = dir.listFiles();
-		for (File f : files) {
-			if (f.delete()) {
-				result++;
+	/**
+	 * @return The cached file, or null if filename is not in the disk cache.
+	 */
+	protected File getCachedFile(String filename) {
+		final DiskLruCache diskCache = getDiskCache();
+		if (diskCache != null) {
+			try {
+				return diskCache.getFile(filename, 0);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
-		return result;
+		return null;
+	}
+
+	protected void removeFromDiskCache(String filename) {
+		final DiskLruCache diskCache = getDiskCache();
+		if (diskCache != null) {
+			try {
+				diskCache.remove(filename);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Where the disk cache keeps filename, whether it is cached or not.
+	 */
+	protected static File getDiskCacheFile(String storePath, String filename) {
+		return new File(storePath, filename + ".0");
 	}
 
 	public void cleanMemoryCache() {
 		mCache.cleanCache();
 	}
 
+	/**
+	 * Give the memory cache and the bitmap pool percent of their full
+	 * budget, shrinking evicts at once.
+	 */
+	private void resizeMemory(int percent) {
+		mBitmapPool.setMaxSize((int) ((long) fullPoolSize * percent / 100));
+		mCache.resize((long) fullCacheSize * percent / 100);
+	}
+
+	/**
+	 * @return The pool decode reuses bitmaps from, see
+	 *         {@link BitmapPool#getHitCount()} and
+	 *         {@link BitmapPool#getMissCount()}.
+	 */
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * @return The memory cache, see {@link MemoryCache#getHitRatio()}.
+	 */
+	public MemoryCache getMemoryCache() {
+		return mCache;
+	}
+
+	/**
+	 * Evict from the memory cache by policy from now on. The cache starts
+	 * over empty, its images go to the bitmap pool.
+	 */
+	public void setMemoryCachePolicy(MemoryCache.Policy policy) {
+		final MemoryCache old = mCache;
+		if (old.getPolicy() == policy) {
+			return;
+		}
+		final MemoryCache cache = new MemoryCache((int) old.maxSize(),
+				mBitmapPool, policy, old.getActiveResources());
+		cache.setKeepLargestVariantOnly(old.isKeepLargestVariantOnly());
+		mCache = cache;
+		old.cleanCache();
+	}
+
+	/**
+	 * Route all downloads started from now on through transport, e.g. one
+	 * with other timeouts, or one talking to a stub server in tests.
+	 */
+	public void setHttpTransport(HttpTransport transport) {
+		if (transport == null) {
+			throw new NullPointerException();
+		}
+		httpTransport = transport;
+	}
+
+	public HttpTransport getHttpTransport() {
+		return httpTransport;
+	}
+
+	/**
+	 * @param ttlMillis
+	 *            how long an url whose download failed for good, e.g. with a
+	 *            404, fails at once instead of being downloaded again. 0 to
+	 *            always download, default {@link #DEFAULT_FAILED_URL_TTL}.
+	 */
+	public void setFailedUrlTtl(long ttlMillis) {
+		failedUrls.setTtl(ttlMillis);
+	}
+
+	/**
+	 * @return mirrors followed by the urls of more it lacks, other than url.
+	 *         mirrors itself if more adds nothing.
+	 */
+	static String[] mergeMirrors(String url, String[] mirrors, String[] more) {
+		if (more == null || more.length == 0) {
+			return mirrors;
+		}
+		final ArrayList<String> merged = new ArrayList<String>();
+		if (mirrors != null) {
+			merged.addAll(Arrays.asList(mirrors));
+		}
+		for (String m : more) {
+			if (m != null && !m.equals(url) && !merged.contains(m)) {
+				merged.add(m);
+			}
+		}
+		if (mirrors != null && merged.size() == mirrors.length) {
+			return mirrors;
+		}
+		return merged.toArray(new String[merged.size()]);
+	}
+
+	/**
+	 * Download every url again, e.g. after the user asked to refresh.
+	 */
+	public void clearFailedUrls() {
+		failedUrls.clear();
+	}
+
+	/**
+	 * Limit the downloads from one host running at once. Downloads from
+	 * other hosts take turns with the held back ones, so a slow host can't
+	 * hold every download thread.
+	 * 
+	 * @param max
+	 *            0 for no limit, default {@link #DEFAULT_DOWNLOADS_PER_HOST}.
+	 */
+	public void setMaxDownloadsPerHost(int max) {
+		maxDownloadsPerHost = max;
+		downloadThreadQueue.setGroupLimit(max);
+	}
+
+	public int getMaxDownloadsPerHost() {
+		return maxDownloadsPerHost;
+	}
+
+	/**
+	 * @return host of url in lower case, null if url has none.
+	 */
+	private static String getHost(String url) {
+		try {
+			final String host = new URL(url).getHost();
+			return TextUtils.isEmpty(host) ? null : host
+					.toLowerCase(Locale.US);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decide when a download of an image with mirrors asks the next mirror
+	 * as well. The default hedges after the 95th percentile of the header
+	 * latency, at least 100 ms and at most 3 s.
+	 * 
+	 * @param policy
+	 *            null to wait a read timeout before the next mirror.
+	 */
+	public void setHedgePolicy(HedgePolicy policy) {
+		hedgePolicy = policy;
+	}
+
+	public HedgePolicy getHedgePolicy() {
+		return hedgePolicy;
+	}
+
 	private static long getUsableSpace(File path) {
 		final StatFs stats = new StatFs(path.getPath());
 		return (long) stats.getBlockSize() * (long) stats.getAvailableBlocks();
@@ -0,0 +1,101 @@
+package com.leo.cache;
+
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+
+/**
+ * Admission control for decoding. Every decode reserves the estimated size of
+ * its output bitmap before it starts and releases it once it is done, so any
+ * number of threads can decode at once as long as the bitmaps being decoded
+ * fit into the budget together.
+ * <p>
+ * A decode which is larger than the whole budget on its own is sampled down
+ * until it fits, a decode which doesn't fit next to the ones already running
+ * waits for them.
+ *
+ * @author Kang, Leo
+ */
+public class DecodeBudget {
+
+	private final long mMaxBytes;
+
+	private long mUsedBytes;
+
+	/**
+	 * @param maxBytes
+	 *            bytes that may be in flight in all decodes together.
+	 */
+	public DecodeBudget(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Raise {@link BitmapFactory.Options#inSampleSize} until a single decode
+	 * with these options fits into the budget, then reserve its size, waiting
+	 * for other decodes to finish if needed. The options must contain the
+	 * result of an {@link BitmapFactory.Options#inJustDecodeBounds} pass.
+	 *
+	 * @param options
+	 * @return the reserved bytes, to be passed to {@link #release(long)}. -1 if
+	 *         the thread was interrupted while waiting, nothing was reserved
+	 *         then.
+	 */
+	public long acquire(BitmapFactory.Options options) {
+		if (options.inSampleSize < 1) {
+			options.inSampleSize = 1;
+		}
+		long bytes = estimateBytes(options);
+		while (bytes > mMaxBytes && options.inSampleSize < 1024) {
+			options.inSampleSize <<= 1;
+			bytes = estimateBytes(options);
+		}
+		synchronized (this) {
+			// A decode is always admitted when nothing else is in flight.
+			while (mUsedBytes > 0 && mUsedBytes + bytes > mMaxBytes) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return -1;
+				}
+			}
+			mUsedBytes += bytes;
+		}
+		return bytes;
+	}
+
+	public synchronized void release(long bytes) {
+		if (bytes > 0) {
+			mUsedBytes -= bytes;
+			notifyAll();
+		}
+	}
+
+	public synchronized long getUsedBytes() {
+		return mUsedBytes;
+	}
+
+	public long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * Estimated size in bytes of the bitmap a decode with these options will
+	 * produce.
+	 */
+	public static long estimateBytes(BitmapFactory.Options options) {
+		final int sampleSize = Math.max(1, options.inSampleSize);
+		final long width = (options.outWidth + sampleSize - 1) / sampleSize;
+		final long height = (options.outHeight + sampleSize - 1) / sampleSize;
+		final Config config = options.inPreferredConfig;
+		final int bytesPerPixel;
+		if (config == Config.RGB_565 || config == Config.ARGB_4444) {
+			bytesPerPixel = 2;
+		} else if (config == Config.ALPHA_8) {
+			bytesPerPixel = 1;
+		} else {
+			bytesPerPixel = 4;
+		}
+		return width * height * bytesPerPixel;
+	}
+}
@@ -487,6 +487,40 @@ public final class DiskLruCache implements Closeable {
         return new Snapshot(key, entry.sequenceNumber, ins);
     }
 
+    /**
+     * Returns the file holding the value for {@code index} of the entry named
+     * {@code key}, or null if it doesn't exist or is not currently readable.
+     * If a file is returned, the entry is moved to the head of the LRU queue.
+     * Unlike {@link #get} no stream is opened, so the file may be evicted
+     * before the caller reads it. A file whose length differs from the one
+     * recorded when it was committed is removed instead of returned.
+     */
+    public synchronized File getFile(String key, int index) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable) {
+            return null;
+        }
+        File file = entry.getCleanFile(index);
+        if (!file.exists()) {
+            // a file must have been deleted manually!
+            return null;
+        }
+        if (file.length() != entry.lengths[index]) {
+            // changed behind the journal's back, don't hand out a torn file.
+            remove(key);
+            return null;
+        }
+
+        redundantOpCount++;
+        journalWriter.append(READ + ' ' + key + '\n');
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+        return file;
+    }
+
     /**
      * Returns an editor for the entry named {@code key}, or null if another
      * edit is in progress.
@@ -664,6 +698,15 @@ public final class DiskLruCache implements Closeable {
         journalWriter.flush();
     }
 
+    /**
+     * Force the journal to the filesystem without trimming the cache, which
+     * is left to the background thread.
+     */
+    public synchronized void flushJournal() throws IOException {
+        checkNotClosed();
+        journalWriter.flush();
+    }
+
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
@@ -810,6 +853,21 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Returns the file the value at {@code index} is written to, for
+         * callers which write it themselves instead of using
+         * {@link #newOutputStream}. The file must be complete and closed
+         * before {@link #commit} is called.
+         */
+        public File getFile(int index) {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                return entry.getDirtyFile(index);
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
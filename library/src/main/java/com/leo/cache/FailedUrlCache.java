@@ -0,0 +1,98 @@
+package com.leo.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Urls whose download failed for good, e.g. with a 404, remembered for a
+ * while so views rebound to them in a list fail at once instead of starting
+ * another download. Keeps the most recent failures only.
+ *
+ * @author Kang, Leo
+ */
+class FailedUrlCache {
+
+	private final int maxEntries;
+
+	private volatile long ttl;
+
+	// Url to the time it may be tried again, oldest first.
+	private final LinkedHashMap<String, Long> expiries;
+
+	/**
+	 * @param ttlMillis
+	 *            how long a failed url is not tried again, 0 to remember
+	 *            nothing.
+	 */
+	FailedUrlCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttlMillis;
+		expiries = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > FailedUrlCache.this.maxEntries;
+			}
+		};
+	}
+
+	void put(String url) {
+		final long ttl = this.ttl;
+		if (ttl <= 0) {
+			return;
+		}
+		synchronized (expiries) {
+			// Re-inserted, so it moves to the end of the eviction order.
+			expiries.remove(url);
+			expiries.put(url, now() + ttl);
+		}
+	}
+
+	/**
+	 * @return true if url failed for good less than the ttl ago.
+	 */
+	boolean contains(String url) {
+		synchronized (expiries) {
+			final Long expiry = expiries.get(url);
+			if (expiry == null) {
+				return false;
+			}
+			if (expiry <= now()) {
+				expiries.remove(url);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	void remove(String url) {
+		synchronized (expiries) {
+			expiries.remove(url);
+		}
+	}
+
+	void clear() {
+		synchronized (expiries) {
+			expiries.clear();
+		}
+	}
+
+	void setTtl(long ttlMillis) {
+		ttl = ttlMillis;
+		if (ttlMillis <= 0) {
+			clear();
+		}
+	}
+
+	long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @return the current time in milliseconds, tests move it on.
+	 */
+	long now() {
+		return System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,90 @@
+package com.leo.cache;
+
+/**
+ * Count-min sketch of how often keys were used recently, with 4 bit
+ * counters, 4 of them per key. Once ten uses per expected key were counted,
+ * all counters are halved, so old popularity fades.
+ * Not thread safe.
+ *
+ * @author Kang, Leo
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	// Clears the high bit of every 4 bit counter after a shift.
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final int MAX_COUNT = 15;
+
+	// 16 counters of 4 bits each.
+	private final long[] table;
+
+	// Counters - 1, their number is a power of two.
+	private final int counterMask;
+
+	private final int sampleSize;
+
+	private int additions;
+
+	/**
+	 * @param expectedEntries
+	 *            keys the cache holds at most, the sketch gets about 16
+	 *            counters per key.
+	 */
+	FrequencySketch(int expectedEntries) {
+		int longs = 1;
+		while (longs < expectedEntries && longs < (1 << 20)) {
+			longs <<= 1;
+		}
+		table = new long[longs];
+		counterMask = (longs << 4) - 1;
+		// About 2.5 increments per counter, long before saturated counters
+		// stop counting uses.
+		sampleSize = 10 * longs;
+	}
+
+	void increment(int hash) {
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int counter = indexOf(hash, i);
+			final int slot = counter >>> 4;
+			final int shift = (counter & 15) << 2;
+			if (((table[slot] >>> shift) & 0xf) < MAX_COUNT) {
+				table[slot] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * @return estimated uses of hash since the counters were last halved,
+	 *         at most 15.
+	 */
+	int frequency(int hash) {
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int counter = indexOf(hash, i);
+			final int count = (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xf);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions >>>= 1;
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int) h) & counterMask;
+	}
+}
@@ -3,6 +3,8 @@ package com.leo.cache;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 
+import com.leo.util.Utils;
+
 import java.io.InputStream;
 
 public class GIFDecoder {
@@ -45,6 +47,16 @@ public class GIFDecoder {
     protected byte[] suffix;
     protected byte[] pixelStack;
     protected byte[] pixels;
+    // Frames are taken from here when set, may be null.
+    protected final BitmapPool pool;
+
+    public GIFDecoder() {
+        this(null);
+    }
+
+    public GIFDecoder(BitmapPool pool) {
+        this.pool = pool;
+    }
 
     /**
      * Creates new frame image from current data (and previous frames as
@@ -101,7 +113,13 @@ public class GIFDecoder {
                 }
             }
         }
-        image = Bitmap.createBitmap(dest, width, height, Config.ARGB_4444);
+        // KitKat creates ARGB_4444 as ARGB_8888 anyway, ask for what the pool
+        // actually holds.
+        final Config config = Utils.hasKITKAT() ? Config.ARGB_8888
+                : Config.ARGB_4444;
+        image = pool == null ? Bitmap.createBitmap(width, height, config)
+                : pool.getOrCreate(width, height, config);
+        image.setPixels(dest, 0, width, 0, 0, width, height);
     }
 
     /**
@@ -430,9 +448,7 @@ public class GIFDecoder {
         }
         decodeBitmapData(); // decode pixel data
         skip();
-        // create new image to receive frame data
-        image = Bitmap.createBitmap(width, height, Config.RGB_565);
-        setPixels(); // transfer pixel data to image
+        setPixels(); // create new image and transfer pixel data to it
         return image;
     }
 
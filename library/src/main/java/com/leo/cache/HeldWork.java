@@ -0,0 +1,103 @@
+package com.leo.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Work held back while loading is paused or the device is offline, replayed
+ * oldest first. Holds a bounded number of items: once full, work whose views
+ * moved on is abandoned and, if that frees nothing, the oldest item is pushed
+ * out for the caller to deal with. Not thread safe, callers synchronize on
+ * it.
+ *
+ * @author Kang, Leo
+ */
+class HeldWork {
+
+	/**
+	 * The load a held item belongs to.
+	 */
+	interface Owner {
+
+		/**
+		 * @return true if a view still waits for the load.
+		 */
+		boolean isActive();
+
+		/**
+		 * Ends the load without running its work.
+		 */
+		void abandon();
+	}
+
+	static final class Item {
+		/** null to run work on the replaying thread. */
+		final ExecutorService stage;
+		final Runnable work;
+		/** null if nothing waits for work, it always runs. */
+		final Owner owner;
+
+		Item(ExecutorService stage, Runnable work, Owner owner) {
+			this.stage = stage;
+			this.work = work;
+			this.owner = owner;
+		}
+	}
+
+	private final int capacity;
+
+	private final ArrayDeque<Item> items = new ArrayDeque<Item>();
+
+	HeldWork(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the oldest item if it had to make room, null otherwise.
+	 */
+	Item add(ExecutorService stage, Runnable work, Owner owner) {
+		Item pushedOut = null;
+		if (items.size() >= capacity) {
+			pruneInactive();
+			if (items.size() >= capacity) {
+				pushedOut = items.pollFirst();
+			}
+		}
+		items.addLast(new Item(stage, work, owner));
+		return pushedOut;
+	}
+
+	/**
+	 * Abandons the work no view waits for anymore.
+	 */
+	void pruneInactive() {
+		final Iterator<Item> it = items.iterator();
+		while (it.hasNext()) {
+			final Item item = it.next();
+			if (item.owner != null && !item.owner.isActive()) {
+				it.remove();
+				item.owner.abandon();
+			}
+		}
+	}
+
+	/**
+	 * @return all held items, oldest first, and holds nothing anymore.
+	 */
+	List<Item> drain() {
+		final ArrayList<Item> drained = new ArrayList<Item>(items);
+		items.clear();
+		return drained;
+	}
+
+	void clear() {
+		items.clear();
+	}
+
+	int size() {
+		return items.size();
+	}
+}
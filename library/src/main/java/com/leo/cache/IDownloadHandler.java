@@ -10,6 +10,12 @@ public interface IDownloadHandler {
 
     void onFinish();
 
+    /**
+     * Finished and the image is still in memory, while it is written to the
+     * disk cache in the background.
+     */
+    void onFinishData(byte[] data);
+
     void onFinishNoFile(Bitmap data);
 
     void onError();
@@ -8,7 +8,8 @@ import android.webkit.URLUtil;
 import android.widget.ImageView;
 
 import com.leo.common.Callback;
-import com.leo.util.MD5Util;
+
+import java.util.ArrayList;
 
 /**
  * 1. Keep Clean away from Download. 2. More timely recycle. 3. Priority of
@@ -44,8 +45,6 @@ public class ImageLoader extends CacheLoader {
 
 			// judge static cover picture
 			instance = new ImageLoader(context, loaderTag, path, true);
-			// TODO can enable auto clean cache file.
-			instance.cleanCache = false;
 			// instances.add(result);
 		}
 		// result.restartThreadPool();
@@ -60,6 +59,20 @@ public class ImageLoader extends CacheLoader {
 		this.cacheDir = cachePath;
 	}
 
+	/**
+	 * Also lets {@link #getInstance(Context, String, String)} make a new
+	 * loader.
+	 */
+	@Override
+	public void close() {
+		synchronized (ImageLoader.class) {
+			if (instance == this) {
+				instance = null;
+			}
+		}
+		super.close();
+	}
+
 	// public static void hardEvict() {
 	// for (ImageLoader self : instances) {
 	// self.cleanMemoryCache();
@@ -85,7 +98,7 @@ public class ImageLoader extends CacheLoader {
 	 * @return
 	 */
 	public String getFilePath(String url) {
-		return cacheDir + "/" + MD5Util.getStringMD5(url);
+		return getDiskCacheFile(cacheDir, getFileName(url)).getPath();
 	}
 
 
@@ -97,6 +110,27 @@ public class ImageLoader extends CacheLoader {
 
 	}
 
+	/**
+	 * Load an image served by several equivalent urls, e.g. CDN mirrors. The
+	 * first valid url is asked first and is the one the image is cached
+	 * under, slow downloads hedge with the next.
+	 */
+	public synchronized void loadRemoteImage(String[] urls, ImageView view,
+			Builder cacheParams, Callback callback) {
+		final ArrayList<String> valid = new ArrayList<String>(urls.length);
+		for (String url : urls) {
+			if (URLUtil.isValidUrl(url)) {
+				valid.add(url);
+			}
+		}
+		if (valid.isEmpty()) {
+			return;
+		}
+		final String[] mirrors = valid.subList(1, valid.size()).toArray(
+				new String[valid.size() - 1]);
+		doLoadRemoteImage(valid.get(0), mirrors, view, cacheParams, callback);
+	}
+
 	public synchronized void loadLocalImage(String filename, ImageView view,
 			Builder cacheParams, Bitmap loadingBitmap,
 			Callback callback) {
@@ -1,83 +1,175 @@
 package com.leo.cache;
 
-import java.lang.ref.SoftReference;
-import java.util.HashSet;
-
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
-import android.support.v4.util.LruCache;
-//import android.util.LruCache;
+import android.widget.ImageView;
 
 import com.leo.util.Utils;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memory cache of decoded images, split into segments by key hash, each an
+ * LRU with its own lock and a share of the budget. The main thread looks
+ * images up while the search and decode threads insert, so:
+ * <ul>
+ * <li>a lookup reads a concurrent map and never blocks. It moves the entry
+ * to the recent end of its LRU only if the segment lock is free, a busy
+ * segment loses that touch.</li>
+ * <li>inserts of different segments don't contend.</li>
+ * <li>evicted entries are handed to the bitmap pool after the segment lock
+ * is released.</li>
+ * </ul>
+ * Each segment keeps half its even share of the budget, the other half goes
+ * to the segments by their share of the inserts, so a few busy segments
+ * don't thrash while others sit idle. The shares are smoothed over windows
+ * of {@link #REBALANCE_INTERVAL} inserts, and the budget is only split again
+ * once a segment is well off its budget, so hashing noise never trims hot
+ * images.
+ * <p>
+ * Each segment evicts by the {@link Policy} the cache was created with.
+ * <p>
+ * Images bound to views are tracked by {@link ActiveResources} in front of
+ * the segments: lookups find them there first, and an evicted image goes to
+ * the bitmap pool only once no view shows it.
+ * <p>
+ * The keys cached per source url are indexed, so a lookup missing its own
+ * size is served by a larger variant of the same image, drawn scaled down,
+ * see {@link CacheKey#canServe(CacheKey)}. Optionally only the largest
+ * variant is kept, see {@link #setKeepLargestVariantOnly(boolean)}.
+ */
 public class MemoryCache {
 
+	public enum Policy {
+		/**
+		 * Evict the least recently used image.
+		 */
+		LRU,
+		/**
+		 * Keep images used often over ones seen once, see
+		 * {@link TinyLfuSegment}. Resists long scrolls through one-off
+		 * images.
+		 */
+		TINY_LFU
+	}
+
+	// Share of a TINY_LFU segment for new images. Larger than usual for data
+	// caches, scrolling back a little needs the last screens of images.
+	private static final int WINDOW_PERCENT = 10;
+
+	// Share of the main part of a TINY_LFU segment for images used again.
+	private static final int PROTECTED_PERCENT = 80;
+
+	// Sizes the frequency sketch of a segment by the images it may hold.
+	private static final int TYPICAL_IMAGE_SIZE = 32 * 1024;
+
+	// Power of two, so a segment is picked by masking the hash.
+	private static final int SEGMENTS = 8;
+
+	// Inserts between two looks at the split of the budget, enough that
+	// evenly spread keys look even.
+	static final int REBALANCE_INTERVAL = 512;
+
+	// Weight of the last window in the smoothed insert shares, in percent.
+	private static final int SMOOTHING_PERCENT = 20;
+
+	// How far off its budget a segment has to be before the budget is split
+	// again, in percent of an even share.
+	private static final int REBALANCE_THRESHOLD_PERCENT = 25;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	// All entries of all segments, read without locking.
+	private final ConcurrentHashMap<CacheKey, BitmapDrawable> entries = new ConcurrentHashMap<CacheKey, BitmapDrawable>();
+
+	private final BitmapPool mReusableBitmaps;
+
+	// Bytes all segments may hold together.
+	private volatile long maxSize;
+
+	private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+	// Smoothed share of the inserts and budget of each segment, guarded by
+	// rebalanceLock.
+	private final double[] insertShares = new double[SEGMENTS];
+	private final long[] budgets = new long[SEGMENTS];
+
+	private int insertsSinceRebalance;
+
+	private final Policy policy;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final ActiveResources activeResources;
+
+	// Keys of the entries by source url. Replaced, never changed, so lookups
+	// read it without locking; writers synchronize on it.
+	private final ConcurrentHashMap<String, CacheKey[]> variants = new ConcurrentHashMap<String, CacheKey[]>();
+
+	private volatile boolean keepLargestVariantOnly;
+
 	/**
-	 * parameters import android.support.v4.util.LruCache;
-	 * 
-	 * <p>
-	 * This class appeared in Android 3.1 (Honeycomb MR1); it's available as
-	 * part of <a
-	 * href="http://developer.android.com/sdk/compatibility-library.html"
-	 * >Android's Support Package</a> for earlier releases.
-	 */
-	private LruCache<String, BitmapDrawable> mMemoryCache;
-
-	private HashSet<SoftReference<Bitmap>> mReusableBitmaps;
-
-	public MemoryCache(int cacheSize) {
-		if (Utils.hasHoneycomb()) {
-			mReusableBitmaps = new HashSet<SoftReference<Bitmap>>();
-		}
-		mMemoryCache = new LruCache<String, BitmapDrawable>(cacheSize) {
-
-			/**
-			 * Notify the removed entry that is no longer being cached
-			 */
-			@Override
-			protected void entryRemoved(boolean evicted, String key,
-					BitmapDrawable oldValue, BitmapDrawable newValue) {
-				if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
-					// The removed entry is a recycling drawable, so notify it
-					// that it has been removed from the memory cache
-					((RecyclingBitmapDrawable) oldValue).setIsCached(false);
-				} else {
-					// The removed entry is a standard BitmapDrawable
-
-					if (Utils.hasHoneycomb()) {
-						// We're running on Honeycomb or later, so add the
-						// bitmap
-						// to a SoftRefrence set for possible use with inBitmap
-						// later
-						mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue
-								.getBitmap()));
-					}
-				}
-			}
+	 * @param cacheSize
+	 *            in bytes.
+	 */
+	public MemoryCache(int cacheSize, BitmapPool bitmapPool) {
+		this(cacheSize, bitmapPool, Policy.LRU);
+	}
 
-			/**
-			 * Measure item size in kilobytes rather than units which is more
-			 * practical for a bitmap cache
-			 */
-			@Override
-			protected int sizeOf(String key, BitmapDrawable value) {
-				final int bitmapSize = getBitmapSize(value) / 1024;
-				return bitmapSize == 0 ? 1 : bitmapSize;
-			}
-		};
+	public MemoryCache(int cacheSize, BitmapPool bitmapPool, Policy policy) {
+		this(cacheSize, bitmapPool, policy, new ActiveResources(bitmapPool));
+	}
+
+	/**
+	 * @param activeResources
+	 *            shared with the cache this one replaces, so the images its
+	 *            views show still go to the pool once they let go.
+	 */
+	MemoryCache(int cacheSize, BitmapPool bitmapPool, Policy policy,
+			ActiveResources activeResources) {
+		this.activeResources = activeResources;
+		mReusableBitmaps = bitmapPool;
+		maxSize = cacheSize;
+		this.policy = policy;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = policy == Policy.TINY_LFU ? new TinyLfuSegment(
+					cacheSize / SEGMENTS) : new LruSegment(cacheSize / SEGMENTS);
+			insertShares[i] = 1.0 / SEGMENTS;
+			budgets[i] = cacheSize / SEGMENTS;
+		}
 	}
 
 	/**
 	 * Get the size in bytes of a bitmap in a BitmapDrawable.
-	 * 
+	 *
 	 * @param value
 	 * @return size in bytes
 	 */
-	@TargetApi(12)
 	public static int getBitmapSize(BitmapDrawable value) {
-		Bitmap bitmap = value.getBitmap();
+		return getBitmapSize(value.getBitmap());
+	}
 
+	/**
+	 * Get the size in bytes of a bitmap, including memory reserved for reuse
+	 * through inBitmap.
+	 *
+	 * @param bitmap
+	 * @return size in bytes
+	 */
+	@TargetApi(19)
+	public static int getBitmapSize(Bitmap bitmap) {
+		if (Utils.hasKITKAT()) {
+			return bitmap.getAllocationByteCount();
+		}
 		if (Utils.hasHoneycombMR1()) {
 			return bitmap.getByteCount();
 		}
@@ -86,35 +178,756 @@ public class MemoryCache {
 	}
 
 	/**
-	 * Try to get image from memory cache.
-	 * 
+	 * @return bytes value takes from the budget.
+	 */
+	int sizeOf(BitmapDrawable value) {
+		return getBitmapSize(value);
+	}
+
+	/**
+	 * Try to get image from memory cache, or from the views showing it. Never
+	 * waits for a segment lock. The bitmap of an image got here never goes
+	 * to the bitmap pool, the cache can't tell when the caller stops
+	 * showing it.
+	 *
 	 * @param key
 	 * @return May be null.
 	 */
-	public BitmapDrawable exist(String key) {
-		BitmapDrawable memValue = null;
+	public BitmapDrawable exist(CacheKey key) {
+		final BitmapDrawable value = get(key);
+		if (value != null) {
+			activeResources.escape(value);
+		}
+		return value;
+	}
+
+	/**
+	 * {@link #exist(CacheKey)} for the loader, which binds what it shows,
+	 * see {@link #bind(ImageView, CacheKey, BitmapDrawable)}.
+	 */
+	BitmapDrawable get(CacheKey key) {
+		BitmapDrawable value = entries.get(key);
+		if (value == null) {
+			// Evicted while a view still shows it.
+			value = activeResources.get(key);
+		}
+		if (value == null) {
+			final CacheKey variant = findVariant(key);
+			if (variant != null) {
+				value = entries.get(variant);
+				if (value != null) {
+					hitCount.incrementAndGet();
+					segmentFor(variant).touch(variant, true);
+					return value;
+				}
+			}
+		}
+		(value != null ? hitCount : missCount).incrementAndGet();
+		segmentFor(key).touch(key, value != null);
+		return value;
+	}
+
+	/**
+	 * @return the smallest cached key which can stand in for key, null if
+	 *         none.
+	 */
+	private CacheKey findVariant(CacheKey key) {
+		final CacheKey[] keys = variants.get(key.getUrl());
+		if (keys == null) {
+			return null;
+		}
+		CacheKey best = null;
+		for (CacheKey candidate : keys) {
+			if (candidate.canServe(key)
+					&& (best == null || isSmaller(candidate, best))) {
+				best = candidate;
+			}
+		}
+		return best;
+	}
 
-		if (mMemoryCache != null) {
-			memValue = mMemoryCache.get(key);
+	private static boolean isSmaller(CacheKey a, CacheKey b) {
+		if (a.isFullSize() || b.isFullSize()) {
+			return !a.isFullSize();
 		}
-		return memValue;
+		return (long) a.getWidth() * a.getHeight() < (long) b.getWidth()
+				* b.getHeight();
 	}
 
-	public void put(String data, BitmapDrawable value) {
-		// Add to memory cache
-		if (mMemoryCache != null) {
-			if (RecyclingBitmapDrawable.class.isInstance(value)) {
-				// The removed entry is a recycling drawable, so notify it
-				// that it has been added into the memory cache
-				((RecyclingBitmapDrawable) value).setIsCached(true);
+	private void addVariant(CacheKey key) {
+		synchronized (variants) {
+			final CacheKey[] keys = variants.get(key.getUrl());
+			if (keys == null) {
+				variants.put(key.getUrl(), new CacheKey[] { key });
+				return;
+			}
+			for (CacheKey k : keys) {
+				if (k.equals(key)) {
+					return;
+				}
 			}
-			mMemoryCache.put(data, value);
+			final CacheKey[] grown = new CacheKey[keys.length + 1];
+			System.arraycopy(keys, 0, grown, 0, keys.length);
+			grown[keys.length] = key;
+			variants.put(key.getUrl(), grown);
 		}
 	}
 
+	private void removeVariant(CacheKey key) {
+		synchronized (variants) {
+			final CacheKey[] keys = variants.get(key.getUrl());
+			if (keys == null) {
+				return;
+			}
+			int index = -1;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i].equals(key)) {
+					index = i;
+					break;
+				}
+			}
+			if (index < 0) {
+				return;
+			}
+			if (keys.length == 1) {
+				variants.remove(key.getUrl());
+				return;
+			}
+			final CacheKey[] shrunk = new CacheKey[keys.length - 1];
+			System.arraycopy(keys, 0, shrunk, 0, index);
+			System.arraycopy(keys, index + 1, shrunk, index, shrunk.length
+					- index);
+			variants.put(key.getUrl(), shrunk);
+		}
+	}
+
+	/**
+	 * Drop the cached variants of key which key can stand in for.
+	 */
+	private void removeSmallerVariants(CacheKey key,
+			ArrayList<BitmapDrawable> removed) {
+		final CacheKey[] keys = variants.get(key.getUrl());
+		if (keys == null) {
+			return;
+		}
+		for (CacheKey k : keys) {
+			if (!k.equals(key) && key.canServe(k)) {
+				segmentFor(k).remove(k, removed);
+			}
+		}
+	}
+
+	public void put(CacheKey data, BitmapDrawable value) {
+		if (maxSize <= 0) {
+			// Trimmed to nothing, views still find it while they show it.
+			return;
+		}
+		if (keepLargestVariantOnly) {
+			final CacheKey larger = findVariant(data);
+			if (larger != null && !larger.equals(data)) {
+				// Decoded while a larger variant was put.
+				return;
+			}
+		}
+		if (RecyclingBitmapDrawable.class.isInstance(value)) {
+			// The removed entry is a recycling drawable, so notify it
+			// that it has been added into the memory cache
+			((RecyclingBitmapDrawable) value).setIsCached(true);
+		}
+		activeResources.onCached(value);
+		final ArrayList<BitmapDrawable> removed = new ArrayList<BitmapDrawable>(
+				2);
+		final BitmapDrawable previous = segmentFor(data).put(data, value,
+				removed);
+		if (previous == value
+				&& RecyclingBitmapDrawable.class.isInstance(value)) {
+			// Cached once, counted once.
+			((RecyclingBitmapDrawable) value).setIsCached(false);
+		}
+		if (keepLargestVariantOnly) {
+			removeSmallerVariants(data, removed);
+		}
+		dispose(removed);
+		boolean rebalance = false;
+		synchronized (segments) {
+			if (++insertsSinceRebalance >= REBALANCE_INTERVAL) {
+				insertsSinceRebalance = 0;
+				rebalance = true;
+			}
+		}
+		if (rebalance) {
+			rebalance(false);
+		}
+	}
+
+	/**
+	 * Change the budget, evicting at once if it shrank, e.g. under memory
+	 * pressure.
+	 *
+	 * @param cacheSize
+	 *            in bytes, 0 empties the cache and keeps it empty.
+	 */
+	public void resize(long cacheSize) {
+		maxSize = Math.max(0, cacheSize);
+		rebalance(true);
+	}
+
+	public BitmapPool getBitmapPool() {
+		return mReusableBitmaps;
+	}
+
+	/**
+	 * Record that view shows the image of key now, and no longer what it
+	 * showed before. drawable may be a larger variant served for key, it is
+	 * tracked under the key it is cached under. Call it after the callback
+	 * which sets drawable, see
+	 * {@link ActiveResources#bind(ImageView, CacheKey, BitmapDrawable)}.
+	 */
+	public void bind(ImageView view, CacheKey key, BitmapDrawable drawable) {
+		activeResources.bind(view, cachedKeyOf(key, drawable), drawable);
+	}
+
+	/**
+	 * @return the key drawable is cached under, key if it isn't cached as a
+	 *         variant of key.
+	 */
+	private CacheKey cachedKeyOf(CacheKey key, BitmapDrawable drawable) {
+		if (entries.get(key) == drawable) {
+			return key;
+		}
+		final CacheKey[] keys = variants.get(key.getUrl());
+		if (keys != null) {
+			for (CacheKey k : keys) {
+				if (entries.get(k) == drawable) {
+					return k;
+				}
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Record that view shows none of the cached images, e.g. while loading.
+	 */
+	public void unbind(ImageView view) {
+		activeResources.unbind(view);
+	}
+
+	/**
+	 * Keep drawable out of the bitmap pool while it is delivered, until
+	 * {@link #release(BitmapDrawable)}. Like
+	 * {@link #bind(ImageView, CacheKey, BitmapDrawable)} it is tracked under
+	 * the key it is cached under.
+	 */
+	public void hold(CacheKey key, BitmapDrawable drawable) {
+		activeResources.hold(cachedKeyOf(key, drawable), drawable);
+	}
+
+	public void release(BitmapDrawable drawable) {
+		activeResources.release(drawable);
+	}
+
+	ActiveResources getActiveResources() {
+		return activeResources;
+	}
+
 	public void cleanCache() {
-		if (mMemoryCache != null) {
-			mMemoryCache.evictAll();
+		final ArrayList<BitmapDrawable> removed = new ArrayList<BitmapDrawable>();
+		for (Segment segment : segments) {
+			segment.evictAll(removed);
+		}
+		dispose(removed);
+	}
+
+	/**
+	 * @return bytes held by all segments.
+	 */
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	public long maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param keepLargestOnly
+	 *            true to drop the smaller variants of an image once a
+	 *            larger one which can stand in for them is cached, saving
+	 *            their memory at the cost of scaling on draw.
+	 */
+	public void setKeepLargestVariantOnly(boolean keepLargestOnly) {
+		keepLargestVariantOnly = keepLargestOnly;
+	}
+
+	public boolean isKeepLargestVariantOnly() {
+		return keepLargestVariantOnly;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return share of the lookups which found their image, 0 before the
+	 *         first lookup.
+	 */
+	public float getHitRatio() {
+		final long hits = hitCount.get();
+		final long lookups = hits + missCount.get();
+		return lookups == 0 ? 0 : (float) hits / lookups;
+	}
+
+	private Segment segmentFor(CacheKey key) {
+		return segments[segmentIndex(key)];
+	}
+
+	static int segmentIndex(CacheKey key) {
+		final int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (SEGMENTS - 1);
+	}
+
+	/**
+	 * Fold the inserts each segment saw since the last call into the
+	 * smoothed shares, and split the budget again if a segment is well off
+	 * its budget. Trims the segments which lost budget.
+	 *
+	 * @param resized
+	 *            the budget changed, so it is split in any case. Waits for
+	 *            another thread at it instead of skipping.
+	 */
+	private void rebalance(boolean resized) {
+		if (resized) {
+			rebalanceLock.lock();
+		} else if (!rebalanceLock.tryLock()) {
+			return;
+		}
+		final ArrayList<BitmapDrawable> removed = new ArrayList<BitmapDrawable>();
+		try {
+			long inserts = 0;
+			final int[] counts = new int[SEGMENTS];
+			for (int i = 0; i < SEGMENTS; i++) {
+				counts[i] = segments[i].takeInserts();
+				inserts += counts[i];
+			}
+			if (inserts > 0) {
+				for (int i = 0; i < SEGMENTS; i++) {
+					insertShares[i] += ((double) counts[i] / inserts - insertShares[i])
+							* SMOOTHING_PERCENT / 100;
+				}
+			}
+			final long total = maxSize;
+			final long fixed = total / SEGMENTS / 2;
+			final long shared = total - fixed * SEGMENTS;
+			final long[] targets = new long[SEGMENTS];
+			long worst = 0;
+			for (int i = 0; i < SEGMENTS; i++) {
+				targets[i] = fixed + (long) (shared * insertShares[i]);
+				worst = Math.max(worst, Math.abs(targets[i] - budgets[i]));
+			}
+			if (!resized
+					&& worst * SEGMENTS * 100 < total
+							* REBALANCE_THRESHOLD_PERCENT) {
+				// Within the noise, keep the hot images.
+				return;
+			}
+			for (int i = 0; i < SEGMENTS; i++) {
+				budgets[i] = targets[i];
+				segments[i].trimTo(targets[i], removed);
+			}
+		} finally {
+			rebalanceLock.unlock();
+		}
+		dispose(removed);
+	}
+
+	/**
+	 * Notify the removed entries that they are no longer being cached, called
+	 * without holding a segment lock.
+	 */
+	private void dispose(ArrayList<BitmapDrawable> removed) {
+		for (BitmapDrawable oldValue : removed) {
+			if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
+				// The removed entry is a recycling drawable, so notify it
+				// that it has been removed from the memory cache
+				((RecyclingBitmapDrawable) oldValue).setIsCached(false);
+			} else {
+				// The removed entry is a standard BitmapDrawable, it waits
+				// for the views showing it.
+
+				if (activeResources.onEvicted(oldValue)
+						&& Utils.hasHoneycomb() && mReusableBitmaps != null) {
+					// We're running on Honeycomb or later, so hand the
+					// bitmap to the pool for possible use with inBitmap
+					// later
+					mReusableBitmaps.put(oldValue.getBitmap());
+				}
+			}
+		}
+	}
+
+	/**
+	 * One part of the cache. Its entries are in {@link MemoryCache#entries}
+	 * as well, both change under {@link #lock} only. Subclasses keep the
+	 * eviction order.
+	 */
+	private abstract class Segment {
+		final ReentrantLock lock = new ReentrantLock();
+		// Read by size() without the lock.
+		volatile long size;
+		private long maxSize;
+		private int inserts;
+
+		Segment(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * Record a lookup of key, unless another thread holds the lock.
+		 */
+		void touch(CacheKey key, boolean hit) {
+			if (lock.tryLock()) {
+				try {
+					onAccess(key, hit);
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		/**
+		 * @param removed
+		 *            gets the replaced and evicted values.
+		 * @return the value key had before, may be null.
+		 */
+		BitmapDrawable put(CacheKey key, BitmapDrawable value,
+				ArrayList<BitmapDrawable> removed) {
+			final Entry entry = new Entry(value, sizeOf(value));
+			lock.lock();
+			try {
+				final Entry previous = unlink(key);
+				entries.put(key, value);
+				if (previous == null) {
+					addVariant(key);
+				}
+				link(key, entry);
+				size += entry.size;
+				inserts++;
+				if (previous != null) {
+					size -= previous.size;
+					if (previous.value != value) {
+						removed.add(previous.value);
+					}
+				}
+				evict(maxSize, key, removed);
+				return previous != null ? previous.value : null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void trimTo(long maxSize, ArrayList<BitmapDrawable> removed) {
+			lock.lock();
+			try {
+				this.maxSize = maxSize;
+				evict(maxSize, null, removed);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void evictAll(ArrayList<BitmapDrawable> removed) {
+			lock.lock();
+			try {
+				evict(-1, null, removed);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return inserts since the last call.
+		 */
+		int takeInserts() {
+			lock.lock();
+			try {
+				final int result = inserts;
+				inserts = 0;
+				return result;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Take key out of the eviction order and drop its entry, if cached.
+		 *
+		 * @param removed
+		 *            gets the dropped value.
+		 */
+		void remove(CacheKey key, ArrayList<BitmapDrawable> removed) {
+			lock.lock();
+			try {
+				final Entry entry = unlink(key);
+				if (entry != null) {
+					drop(key, entry, removed);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Drop an entry the subclass took out of its order.
+		 */
+		void drop(CacheKey key, Entry entry, ArrayList<BitmapDrawable> removed) {
+			entries.remove(key, entry.value);
+			removeVariant(key);
+			size -= entry.size;
+			removed.add(entry.value);
+		}
+
+		abstract void onAccess(CacheKey key, boolean hit);
+
+		/**
+		 * Take key out of the eviction order.
+		 *
+		 * @return its entry, null if there is none.
+		 */
+		abstract Entry unlink(CacheKey key);
+
+		/**
+		 * Add a new entry to the eviction order.
+		 */
+		abstract void link(CacheKey key, Entry entry);
+
+		/**
+		 * Evict entries until size fits, except keep, the entry just
+		 * inserted, so an image larger than the segment's share is still
+		 * cached until the next insert.
+		 */
+		abstract void evict(long maxSize, CacheKey keep,
+				ArrayList<BitmapDrawable> removed);
+	}
+
+	private final class LruSegment extends Segment {
+		// Least recently used first.
+		private final LinkedHashMap<CacheKey, Entry> lru = new LinkedHashMap<CacheKey, Entry>(
+				16, 0.75f, true);
+
+		LruSegment(long maxSize) {
+			super(maxSize);
+		}
+
+		@Override
+		void touch(CacheKey key, boolean hit) {
+			// Misses change nothing, don't take the lock for them.
+			if (hit) {
+				super.touch(key, hit);
+			}
+		}
+
+		@Override
+		void onAccess(CacheKey key, boolean hit) {
+			lru.get(key);
+		}
+
+		@Override
+		Entry unlink(CacheKey key) {
+			return lru.remove(key);
+		}
+
+		@Override
+		void link(CacheKey key, Entry entry) {
+			lru.put(key, entry);
+		}
+
+		@Override
+		void evict(long maxSize, CacheKey keep,
+				ArrayList<BitmapDrawable> removed) {
+			final Iterator<Map.Entry<CacheKey, Entry>> it = lru.entrySet()
+					.iterator();
+			while (size > maxSize && it.hasNext()) {
+				final Map.Entry<CacheKey, Entry> e = it.next();
+				if (e.getKey().equals(keep)) {
+					continue;
+				}
+				it.remove();
+				drop(e.getKey(), e.getValue(), removed);
+			}
+		}
+	}
+
+	/**
+	 * W-TinyLFU: new images enter a small LRU window. Images leaving the
+	 * window only get into the main part if they were used more often
+	 * recently than the image they would push out, counted by a
+	 * {@link FrequencySketch} which also counts misses. The main part is a
+	 * segmented LRU, images used again there move from probation to the
+	 * protected part. A scroll through images seen once passes through the
+	 * window without flushing the images used again and again.
+	 */
+	private final class TinyLfuSegment extends Segment {
+		// Least recently used first in all three.
+		private final LinkedHashMap<CacheKey, Entry> window = new LinkedHashMap<CacheKey, Entry>(
+				16, 0.75f, true);
+		private final LinkedHashMap<CacheKey, Entry> probation = new LinkedHashMap<CacheKey, Entry>(
+				16, 0.75f, true);
+		private final LinkedHashMap<CacheKey, Entry> protectedLru = new LinkedHashMap<CacheKey, Entry>(
+				16, 0.75f, true);
+		private long windowSize;
+		private long protectedSize;
+		private final FrequencySketch sketch;
+
+		TinyLfuSegment(long maxSize) {
+			super(maxSize);
+			sketch = new FrequencySketch((int) Math.max(64, maxSize
+					/ TYPICAL_IMAGE_SIZE));
+		}
+
+		@Override
+		void onAccess(CacheKey key, boolean hit) {
+			sketch.increment(key.hashCode());
+			if (!hit || window.get(key) != null
+					|| protectedLru.get(key) != null) {
+				return;
+			}
+			final Entry entry = probation.remove(key);
+			if (entry != null) {
+				// Used again, protect it.
+				protectedLru.put(key, entry);
+				protectedSize += entry.size;
+			}
+		}
+
+		@Override
+		Entry unlink(CacheKey key) {
+			Entry entry = window.remove(key);
+			if (entry != null) {
+				windowSize -= entry.size;
+				return entry;
+			}
+			entry = protectedLru.remove(key);
+			if (entry != null) {
+				protectedSize -= entry.size;
+				return entry;
+			}
+			return probation.remove(key);
+		}
+
+		@Override
+		void link(CacheKey key, Entry entry) {
+			sketch.increment(key.hashCode());
+			window.put(key, entry);
+			windowSize += entry.size;
+		}
+
+		@Override
+		void evict(long maxSize, CacheKey keep,
+				ArrayList<BitmapDrawable> removed) {
+			final long windowMax = maxSize * WINDOW_PERCENT / 100;
+			final long protectedMax = (maxSize - windowMax)
+					* PROTECTED_PERCENT / 100;
+			// Protected overflow goes back on probation.
+			Iterator<Map.Entry<CacheKey, Entry>> it = protectedLru.entrySet()
+					.iterator();
+			while (protectedSize > protectedMax && it.hasNext()) {
+				final Map.Entry<CacheKey, Entry> e = it.next();
+				it.remove();
+				protectedSize -= e.getValue().size;
+				probation.put(e.getKey(), e.getValue());
+			}
+			// Window overflow asks to get into the main part.
+			it = window.entrySet().iterator();
+			while (windowSize > windowMax && it.hasNext()) {
+				final Map.Entry<CacheKey, Entry> e = it.next();
+				if (e.getKey().equals(keep) && size <= maxSize) {
+					continue;
+				}
+				it.remove();
+				windowSize -= e.getValue().size;
+				admit(e.getKey(), e.getValue(), maxSize, removed);
+			}
+			// Shrunk or cleared, evict from the coldest end.
+			evictFrom(probation, maxSize, keep, removed);
+			protectedSize -= evictFrom(protectedLru, maxSize, keep, removed);
+			windowSize -= evictFrom(window, maxSize, keep, removed);
+		}
+
+		/**
+		 * Put candidate on probation if it was used more often than the
+		 * images it pushes out, else drop it.
+		 */
+		private void admit(CacheKey key, Entry candidate, long maxSize,
+				ArrayList<BitmapDrawable> removed) {
+			final int frequency = sketch.frequency(key.hashCode());
+			while (size > maxSize) {
+				LinkedHashMap<CacheKey, Entry> victims = probation;
+				if (victims.isEmpty()) {
+					victims = protectedLru;
+				}
+				if (victims.isEmpty()) {
+					break;
+				}
+				final Map.Entry<CacheKey, Entry> victim = victims.entrySet()
+						.iterator().next();
+				if (frequency <= sketch.frequency(victim.getKey().hashCode())) {
+					drop(key, candidate, removed);
+					return;
+				}
+				victims.remove(victim.getKey());
+				if (victims == protectedLru) {
+					protectedSize -= victim.getValue().size;
+				}
+				drop(victim.getKey(), victim.getValue(), removed);
+			}
+			probation.put(key, candidate);
+		}
+
+		/**
+		 * @return bytes evicted.
+		 */
+		private long evictFrom(LinkedHashMap<CacheKey, Entry> lru,
+				long maxSize, CacheKey keep, ArrayList<BitmapDrawable> removed) {
+			long evicted = 0;
+			final Iterator<Map.Entry<CacheKey, Entry>> it = lru.entrySet()
+					.iterator();
+			while (size > maxSize && it.hasNext()) {
+				final Map.Entry<CacheKey, Entry> e = it.next();
+				if (e.getKey().equals(keep)) {
+					continue;
+				}
+				it.remove();
+				evicted += e.getValue().size;
+				drop(e.getKey(), e.getValue(), removed);
+			}
+			return evicted;
+		}
+	}
+
+	/**
+	 * A cached image and its size when it was inserted, so the size taken
+	 * off on eviction is the one added.
+	 */
+	private static final class Entry {
+		final BitmapDrawable value;
+		final int size;
+
+		Entry(BitmapDrawable value, int size) {
+			this.value = value;
+			this.size = size;
 		}
 	}
 }
@@ -0,0 +1,127 @@
+package com.leo.cache;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Follows the memory pressure the system reports and from it suggests which
+ * share of their full size the memory cache and the bitmap pool may use:
+ * half once the app is hidden or memory runs short, a quarter when it runs
+ * low, nothing when the process is next to be killed. A trim only ever
+ * lowers the share. Once no warning came for {@link #GROW_INTERVAL}, the
+ * share grows back a step at a time, so a single warning doesn't cost the
+ * whole cache and a persisting one keeps it small.
+ *
+ * @author Kang, Leo
+ */
+class MemoryTrimmer implements ComponentCallbacks2 {
+
+	interface Listener {
+		/**
+		 * Called on the main thread when the suggested share changed.
+		 *
+		 * @param percent
+		 *            of the full size, 0 to 100.
+		 */
+		void onBudgetChanged(int percent);
+	}
+
+	static final int FULL = 100;
+
+	// Share gained back per step once the pressure eased.
+	private static final int GROW_STEP = 25;
+
+	// Time without a warning before each step back up.
+	static final long GROW_INTERVAL = 30 * 1000;
+
+	private final Context context;
+
+	private final Listener listener;
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	// Only changed on the main thread.
+	private volatile int percent = FULL;
+
+	private final Runnable grow = new Runnable() {
+		@Override
+		public void run() {
+			setPercent(Math.min(FULL, percent + GROW_STEP));
+			if (percent < FULL) {
+				handler.postDelayed(this, GROW_INTERVAL);
+			}
+		}
+	};
+
+	MemoryTrimmer(Context context, Listener listener) {
+		this.context = context.getApplicationContext() != null ? context
+				.getApplicationContext() : context;
+		this.listener = listener;
+	}
+
+	void start() {
+		context.registerComponentCallbacks(this);
+	}
+
+	void stop() {
+		context.unregisterComponentCallbacks(this);
+		handler.removeCallbacks(grow);
+	}
+
+	int getPercent() {
+		return percent;
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		trim(getPercentFor(level));
+	}
+
+	@Override
+	public void onLowMemory() {
+		trim(0);
+	}
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+	}
+
+	private void trim(int target) {
+		// Every warning restarts the wait before growing back.
+		handler.removeCallbacks(grow);
+		setPercent(Math.min(percent, target));
+		if (percent < FULL) {
+			handler.postDelayed(grow, GROW_INTERVAL);
+		}
+	}
+
+	private void setPercent(int newPercent) {
+		if (newPercent == percent) {
+			return;
+		}
+		percent = newPercent;
+		listener.onBudgetChanged(newPercent);
+	}
+
+	private static int getPercentFor(int level) {
+		if (level >= TRIM_MEMORY_COMPLETE) {
+			// Next to be killed, whatever it frees may keep the process.
+			return 0;
+		}
+		if (level >= TRIM_MEMORY_MODERATE
+				|| level >= TRIM_MEMORY_RUNNING_LOW
+				&& level < TRIM_MEMORY_UI_HIDDEN) {
+			// In the middle of the background list, or running low in
+			// the foreground where the views still need their images.
+			return 25;
+		}
+		if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+			// Hidden, early in the background list, or a first warning.
+			return 50;
+		}
+		return FULL;
+	}
+}
@@ -0,0 +1,175 @@
+package com.leo.cache;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+/**
+ * Follows the connectivity of the device and the throughput downloads get,
+ * and from both suggests how many downloads should run at once: many on
+ * wifi, few on a slow mobile link, where parallel downloads only split the
+ * bandwidth and each image takes longer to appear.
+ *
+ * @author Kang, Leo
+ */
+class NetworkMonitor extends BroadcastReceiver {
+
+	interface Listener {
+		/**
+		 * Called when the connection or the suggested number of downloads
+		 * changed, on the main thread or on the download thread which
+		 * measured the throughput.
+		 */
+		void onNetworkChanged(boolean connected, int downloadThreads);
+	}
+
+	// Downloads at once on wifi or ethernet.
+	private final int maxThreads;
+
+	// Fewest downloads at once, even on the slowest link.
+	private static final int MIN_THREADS = 2;
+
+	// Below this many bytes per second the link counts as slow.
+	private static final long SLOW_THROUGHPUT = 32 * 1024;
+
+	// Downloads smaller than this are mostly latency, they say nothing about
+	// the throughput.
+	private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+
+	private final Context context;
+
+	private final Listener listener;
+
+	private volatile boolean connected = true;
+
+	// Suggested downloads at once for the link type, before throughput.
+	private volatile int linkThreads;
+
+	// Moving average of the bytes per second of recent downloads, -1 while
+	// unknown.
+	private long throughput = -1;
+
+	private int downloadThreads;
+
+	NetworkMonitor(Context context, int maxThreads, Listener listener) {
+		this.context = context.getApplicationContext() != null ? context
+				.getApplicationContext() : context;
+		this.maxThreads = maxThreads;
+		this.listener = listener;
+		linkThreads = maxThreads;
+		downloadThreads = maxThreads;
+	}
+
+	/**
+	 * Read the current connection and follow its changes.
+	 */
+	void start() {
+		update(false);
+		context.registerReceiver(this, new IntentFilter(
+				ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	void stop() {
+		context.unregisterReceiver(this);
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		update(true);
+	}
+
+	boolean isConnected() {
+		return connected;
+	}
+
+	synchronized int getDownloadThreads() {
+		return downloadThreads;
+	}
+
+	/**
+	 * Record a finished download.
+	 */
+	void recordDownload(long bytes, long millis) {
+		if (bytes < MIN_SAMPLE_BYTES || millis <= 0) {
+			return;
+		}
+		final long sample = bytes * 1000 / millis;
+		synchronized (this) {
+			throughput = throughput < 0 ? sample
+					: (throughput * 3 + sample) / 4;
+		}
+		notifyIfChanged(false);
+	}
+
+	private void update(boolean notify) {
+		NetworkInfo info = null;
+		try {
+			final ConnectivityManager manager = (ConnectivityManager) context
+					.getSystemService(Context.CONNECTIVITY_SERVICE);
+			info = manager.getActiveNetworkInfo();
+		} catch (SecurityException e) {
+			// No ACCESS_NETWORK_STATE, assume a fast connection.
+			return;
+		}
+		final boolean nowConnected = info != null && info.isConnected();
+		final int threads = nowConnected ? getLinkThreads(info) : maxThreads;
+		final boolean changed;
+		synchronized (this) {
+			changed = nowConnected != connected || threads != linkThreads;
+			if (threads != linkThreads) {
+				// Measured on the old link.
+				throughput = -1;
+			}
+			connected = nowConnected;
+			linkThreads = threads;
+		}
+		if (changed) {
+			CacheLoader.networkEnable = nowConnected;
+		}
+		notifyIfChanged(notify && changed);
+	}
+
+	/**
+	 * @param force
+	 *            notify even if the number of downloads stays.
+	 */
+	private void notifyIfChanged(boolean force) {
+		final int threads;
+		synchronized (this) {
+			threads = throughput >= 0 && throughput < SLOW_THROUGHPUT ? Math
+					.max(MIN_THREADS, linkThreads / 2) : linkThreads;
+			if (threads == downloadThreads && !force) {
+				return;
+			}
+			downloadThreads = threads;
+		}
+		listener.onNetworkChanged(connected, threads);
+	}
+
+	private int getLinkThreads(NetworkInfo info) {
+		if (info.getType() != ConnectivityManager.TYPE_MOBILE) {
+			return maxThreads;
+		}
+		switch (info.getSubtype()) {
+		case TelephonyManager.NETWORK_TYPE_LTE:
+		case TelephonyManager.NETWORK_TYPE_HSPAP:
+			return Math.max(MIN_THREADS, maxThreads * 3 / 4);
+		case TelephonyManager.NETWORK_TYPE_UMTS:
+		case TelephonyManager.NETWORK_TYPE_HSDPA:
+		case TelephonyManager.NETWORK_TYPE_HSUPA:
+		case TelephonyManager.NETWORK_TYPE_HSPA:
+		case TelephonyManager.NETWORK_TYPE_EVDO_0:
+		case TelephonyManager.NETWORK_TYPE_EVDO_A:
+		case TelephonyManager.NETWORK_TYPE_EVDO_B:
+		case TelephonyManager.NETWORK_TYPE_EHRPD:
+			return Math.max(MIN_THREADS, maxThreads / 2);
+		default:
+			// 2G or unknown.
+			return MIN_THREADS;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.leo.cache;
+
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * Pauses a {@link CacheLoader} while a list or grid scrolls and resumes it
+ * once the list comes to rest.
+ *
+ * @author Kang, Leo
+ */
+public class PauseOnScrollListener implements OnScrollListener {
+
+	private final CacheLoader loader;
+
+	private final boolean pauseOnScroll;
+
+	private final boolean pauseOnFling;
+
+	private final boolean pauseDownloads;
+
+	private final OnScrollListener externalListener;
+
+	/**
+	 * @param loader
+	 * @param pauseOnScroll
+	 *            pause while the user drags the list.
+	 * @param pauseOnFling
+	 *            pause while the list flings.
+	 * @param pauseDownloads
+	 *            hold new downloads as well, see
+	 *            {@link CacheLoader#pause(boolean)}.
+	 */
+	public PauseOnScrollListener(CacheLoader loader, boolean pauseOnScroll,
+			boolean pauseOnFling, boolean pauseDownloads) {
+		this(loader, pauseOnScroll, pauseOnFling, pauseDownloads, null);
+	}
+
+	/**
+	 * @param externalListener
+	 *            listener the events are forwarded to, may be null.
+	 */
+	public PauseOnScrollListener(CacheLoader loader, boolean pauseOnScroll,
+			boolean pauseOnFling, boolean pauseDownloads,
+			OnScrollListener externalListener) {
+		this.loader = loader;
+		this.pauseOnScroll = pauseOnScroll;
+		this.pauseOnFling = pauseOnFling;
+		this.pauseDownloads = pauseDownloads;
+		this.externalListener = externalListener;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		switch (scrollState) {
+		case OnScrollListener.SCROLL_STATE_IDLE:
+			loader.resume();
+			break;
+		case OnScrollListener.SCROLL_STATE_TOUCH_SCROLL:
+			if (pauseOnScroll) {
+				loader.pause(pauseDownloads);
+			} else {
+				loader.resume();
+			}
+			break;
+		case OnScrollListener.SCROLL_STATE_FLING:
+			if (pauseOnFling) {
+				loader.pause(pauseDownloads);
+			}
+			break;
+		}
+		if (externalListener != null) {
+			externalListener.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem,
+			int visibleItemCount, int totalItemCount) {
+		if (externalListener != null) {
+			externalListener.onScroll(view, firstVisibleItem,
+					visibleItemCount, totalItemCount);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.leo.cache;
+
+import com.leo.net.BodyTooLargeException;
+import com.leo.net.HttpStatusException;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Decides whether a failed download is tried again and how long to wait
+ * before. Permanent failures are never retried, others a few times with an
+ * exponential back off, at random between half and all of it so downloads
+ * which failed together don't retry together.
+ *
+ * @author Kang, Leo
+ */
+class RetryPolicy {
+
+	/** Returned by {@link #delayBeforeRetry(IOException, int)} to give up. */
+	static final long GIVE_UP = -1;
+
+	private final int maxRetries;
+
+	private final long baseDelay;
+
+	private final Random jitter;
+
+	/**
+	 * @param maxRetries
+	 *            attempts after the first one.
+	 * @param baseDelay
+	 *            about the wait before the first retry, doubled for each
+	 *            one after.
+	 */
+	RetryPolicy(int maxRetries, long baseDelay, Random jitter) {
+		this.maxRetries = maxRetries;
+		this.baseDelay = baseDelay;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @param retries
+	 *            retries made so far.
+	 * @return milliseconds to wait before the next attempt, or
+	 *         {@link #GIVE_UP}.
+	 */
+	long delayBeforeRetry(IOException failure, int retries) {
+		if (isPermanent(failure) || retries >= maxRetries) {
+			return GIVE_UP;
+		}
+		final long delay = baseDelay << retries;
+		return delay / 2 + (long) (jitter.nextDouble() * (delay / 2));
+	}
+
+	/**
+	 * @return true if the same request will fail again, like a 404 or a body
+	 *         too large to keep in memory. Timeouts, connection and server
+	 *         errors are worth a retry.
+	 */
+	static boolean isPermanent(IOException e) {
+		if (e instanceof BodyTooLargeException) {
+			return true;
+		}
+		return e instanceof HttpStatusException
+				&& ((HttpStatusException) e).isPermanent();
+	}
+}
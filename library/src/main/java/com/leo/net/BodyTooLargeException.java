@@ -0,0 +1,23 @@
+package com.leo.net;
+
+import java.io.IOException;
+
+/**
+ * The body is larger than the caller can take, so the same request will
+ * fail again.
+ */
+public class BodyTooLargeException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long maxSize;
+
+	public BodyTooLargeException(long maxSize, String urlString) {
+		super("Larger than " + maxSize + " bytes " + urlString);
+		this.maxSize = maxSize;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+}
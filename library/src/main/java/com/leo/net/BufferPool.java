@@ -0,0 +1,46 @@
+package com.leo.net;
+
+import java.util.ArrayList;
+
+/**
+ * Large copy buffers shared by all downloads, so running many downloads at
+ * once does not allocate a fresh buffer for each of them.
+ */
+public final class BufferPool {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	// One per download thread is enough, more are left to the GC.
+	private static final int MAX_POOLED = 8;
+
+	private static final ArrayList<byte[]> pool = new ArrayList<byte[]>(
+			MAX_POOLED);
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @return a buffer of {@link #BUFFER_SIZE} bytes, hand it back with
+	 *         {@link #release(byte[])}.
+	 */
+	public static byte[] acquire() {
+		synchronized (pool) {
+			final int size = pool.size();
+			if (size > 0) {
+				return pool.remove(size - 1);
+			}
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	public static void release(byte[] buffer) {
+		if (buffer == null || buffer.length != BUFFER_SIZE) {
+			return;
+		}
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED) {
+				pool.add(buffer);
+			}
+		}
+	}
+}
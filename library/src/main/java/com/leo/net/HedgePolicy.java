@@ -0,0 +1,79 @@
+package com.leo.net;
+
+import java.util.Arrays;
+
+/**
+ * Decides how long a download waits for the response headers of one mirror
+ * before it asks the next mirror as well. The delay follows a percentile of
+ * the recent header latencies, so only the slowest requests are hedged and
+ * the extra load stays small.
+ */
+public class HedgePolicy {
+
+	// Latencies the percentile is computed over.
+	private static final int SAMPLES = 64;
+
+	// Below this many samples the percentile means nothing, maxDelay is used.
+	private static final int MIN_SAMPLES = 8;
+
+	private final int percentile;
+
+	private final long minDelay;
+
+	private final long maxDelay;
+
+	private final long[] samples = new long[SAMPLES];
+
+	private int count;
+
+	private int next;
+
+	/**
+	 * @param percentile
+	 *            of the header latency after which a hedge is sent, e.g. 95.
+	 * @param minDelayMillis
+	 *            lower bound of the delay.
+	 * @param maxDelayMillis
+	 *            upper bound of the delay, also used until enough latencies
+	 *            were seen.
+	 */
+	public HedgePolicy(int percentile, long minDelayMillis, long maxDelayMillis) {
+		if (percentile < 1 || percentile > 100) {
+			throw new IllegalArgumentException("percentile " + percentile);
+		}
+		this.percentile = percentile;
+		this.minDelay = minDelayMillis;
+		this.maxDelay = maxDelayMillis;
+	}
+
+	/**
+	 * Record the time from sending a request to its response headers.
+	 */
+	public synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % SAMPLES;
+		if (count < SAMPLES) {
+			count++;
+		}
+	}
+
+	/**
+	 * @return milliseconds to wait for a mirror before hedging.
+	 */
+	public long getDelay() {
+		final long[] sorted;
+		synchronized (this) {
+			if (count < MIN_SAMPLES) {
+				return maxDelay;
+			}
+			sorted = Arrays.copyOf(samples, count);
+		}
+		Arrays.sort(sorted);
+		final long value = sorted[(sorted.length - 1) * percentile / 100];
+		return Math.max(minDelay, Math.min(maxDelay, value));
+	}
+
+	public int getPercentile() {
+		return percentile;
+	}
+}
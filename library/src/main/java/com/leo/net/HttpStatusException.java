@@ -0,0 +1,32 @@
+package com.leo.net;
+
+import java.io.IOException;
+
+/**
+ * The server answered with an error status, so retrying the same request
+ * may or may not help, see {@link #isPermanent()}.
+ */
+public class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+
+	public HttpStatusException(int statusCode, String urlString) {
+		super("HTTP " + statusCode + " " + urlString);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return true for client errors other than a timeout or throttling,
+	 *         the same request will fail again.
+	 */
+	public boolean isPermanent() {
+		return statusCode >= 400 && statusCode < 500 && statusCode != 408
+				&& statusCode != 429;
+	}
+}
@@ -0,0 +1,18 @@
+package com.leo.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Opens the connections all downloads of a loader go through. Replace it to
+ * route requests elsewhere, e.g. to a local stub server in tests.
+ */
+public interface HttpTransport {
+
+	/**
+	 * @param urlString
+	 * @return a connection with timeouts set, not yet connected, so the
+	 *         caller can still add request headers.
+	 */
+	HttpURLConnection open(String urlString) throws IOException;
+}
@@ -2,16 +2,33 @@ package com.leo.net;
 
 import android.content.Context;
 import android.os.Build;
+import android.os.Process;
 
+import com.leo.threadpool.PriorityThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -19,85 +36,447 @@ import javax.net.ssl.X509TrustManager;
 
 public class HttpUtils {
 
-	public void downloadInFile(String urlString, File file, Context context)
-			throws IOException {
+	private final HttpTransport transport;
 
-		HttpURLConnection urlConnection = null;
-		FileOutputStream out = null;
-		File cacheFile = file;
-		if (!cacheFile.exists()) {
-			cacheFile.getParentFile().mkdirs();
+	private volatile boolean cancelled;
+
+	private volatile HttpURLConnection connection;
+
+	private ProgressListener progressListener;
+
+	private String[] mirrors;
+
+	private HedgePolicy hedgePolicy;
+
+	// Attempts of a hedged request still running, cancel() disconnects them.
+	private final HashMap<Future<HttpURLConnection>, Attempt> attempts = new HashMap<Future<HttpURLConnection>, Attempt>();
+
+	// Hedge attempts block on the network, so the pool grows as needed.
+	private static final ThreadPoolExecutor HEDGE_EXECUTOR = new ThreadPoolExecutor(
+			0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new PriorityThreadFactory(
+					"hedge", Process.THREAD_PRIORITY_BACKGROUND));
+
+	/**
+	 * Called on the downloading thread as data arrives. Gets primitives only,
+	 * nothing is allocated per call.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param total
+		 *            -1 if unknown.
+		 */
+		void onProgress(long bytes, long total);
+	}
+
+	public HttpUtils() {
+		this(UrlConnectionTransport.getDefault());
+	}
+
+	/**
+	 * @param transport
+	 *            shared by all clients, so connections are reused.
+	 */
+	public HttpUtils(HttpTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Stop the running or next download of this client, from any thread. The
+	 * download throws an {@link InterruptedIOException}.
+	 */
+	public void cancel() {
+		cancelled = true;
+		final HttpURLConnection c = connection;
+		if (c != null) {
+			// Closes the socket, a blocked read returns right away.
+			c.disconnect();
 		}
-		URL url;
-		InputStream is = null;
+		synchronized (attempts) {
+			for (Attempt attempt : attempts.values()) {
+				attempt.abandon();
+			}
+		}
+	}
+
+	/**
+	 * Let downloads of this client race equivalent urls, see
+	 * {@link HedgePolicy}. Set it before the download starts.
+	 * 
+	 * @param mirrors
+	 *            urls serving the same content as the downloaded one, in the
+	 *            order they are tried. Null or empty for none.
+	 * @param policy
+	 *            decides the delay before the next mirror is asked, and
+	 *            learns the header latency of every request. May be null, the
+	 *            read timeout is the delay then.
+	 */
+	public void setHedging(String[] mirrors, HedgePolicy policy) {
+		this.mirrors = mirrors;
+		this.hedgePolicy = policy;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @param listener
+	 *            may be null. Set it before the download starts.
+	 */
+	public void setProgressListener(ProgressListener listener) {
+		progressListener = listener;
+	}
+
+	/**
+	 * Copy is to out through a pooled buffer. The buffer is filled before
+	 * every write, so a download takes one write per
+	 * {@link BufferPool#BUFFER_SIZE} bytes instead of one per network read.
+	 * 
+	 * @param done
+	 *            bytes already in out, counted in the progress.
+	 */
+	private void copy(InputStream is, OutputStream out, long done, long total)
+			throws IOException {
+		final ProgressListener listener = progressListener;
+		final byte[] buffer = BufferPool.acquire();
 		try {
-			url = new URL(urlString);
-			urlConnection = (HttpURLConnection) url
-					.openConnection();
-			if (urlConnection instanceof HttpsURLConnection) {
-				SSLSocketFactory sslSocketFactory = getTrustAllSSLSocketFactory();
-				if (sslSocketFactory != null) {
-					((HttpsURLConnection) urlConnection).setSSLSocketFactory(sslSocketFactory);
+			int filled = 0;
+			try {
+				int b;
+				while ((b = is.read(buffer, filled, buffer.length - filled)) != -1) {
+					checkCancelled();
+					filled += b;
+					done += b;
+					if (filled == buffer.length) {
+						out.write(buffer, 0, filled);
+						filled = 0;
+					}
+					if (listener != null) {
+						listener.onProgress(done, total);
+					}
+				}
+			} finally {
+				// Also on failure, a partial download keeps what arrived.
+				if (filled > 0) {
+					out.write(buffer, 0, filled);
 				}
 			}
+			checkCancelled();
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
 
-			urlConnection.setConnectTimeout(20000);
-			urlConnection.setReadTimeout(20000);
+	/**
+	 * Download into file. The body is written to a temp file next to it and
+	 * only renamed to file once it is complete, so readers never see a
+	 * partial image.
+	 */
+	public void downloadInFile(String urlString, File file, Context context)
+			throws IOException {
+		if (!file.exists()) {
+			file.getParentFile().mkdirs();
+		}
+		final File tmpFile = new File(file.getPath() + ".tmp");
+		HttpURLConnection urlConnection = null;
+		FileOutputStream out = null;
+		InputStream is = null;
+		boolean published = false;
+		try {
+			urlConnection = connect(urlString, null, null);
 			is = urlConnection.getInputStream();
-			out = new FileOutputStream(cacheFile);
-			byte[] buffer = new byte[4 * 1024];
-			int b = -1;
-			while ((b = is.read(buffer)) != -1) {
-				out.write(buffer, 0, b);
+			out = new FileOutputStream(tmpFile);
+			final int contentLength = urlConnection.getContentLength();
+			copy(is, out, 0, contentLength);
+			out.close();
+			out = null;
+			if (contentLength >= 0 && tmpFile.length() != contentLength) {
+				throw new IOException("Incomplete download " + urlString);
 			}
-			if (cacheFile != null
-					&& cacheFile.length() < urlConnection.getContentLength()) {
-				if (cacheFile.exists()) {
-					cacheFile.delete();
-				}
+			file.delete();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Cannot rename " + tmpFile);
 			}
+			published = true;
 		} catch (IOException e) {
+			if (cancelled) {
+				throw new InterruptedIOException("Cancelled " + urlString);
+			}
 			e.printStackTrace();
 			throw e;
 		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+			connection = null;
+			closeQuietly(is);
+			closeQuietly(out);
+			if (!published) {
+				tmpFile.delete();
 			}
-			if (out != null) {
-				try {
-					out.flush();
-					out.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+		}
+
+		file.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Download into file, keeping what arrived of an interrupted download in
+	 * partial together with the server's validator (ETag or Last-Modified).
+	 * The next call for the same partial asks only for the missing bytes with
+	 * a Range request, and starts over if the server sends the whole image
+	 * or the image changed meanwhile. Without a validator nothing is kept.
+	 * 
+	 * @param partial
+	 *            next to file, so it can be renamed into place.
+	 */
+	public void downloadInFile(String urlString, File file, File partial,
+			Context context) throws IOException {
+		final File metaFile = new File(partial.getPath() + ".meta");
+		if (!partial.exists()) {
+			partial.getParentFile().mkdirs();
+		}
+		for (int attempt = 0; attempt < 2; attempt++) {
+			final String[] meta = partial.length() > 0 ? readMeta(metaFile)
+					: null;
+			HttpURLConnection urlConnection = null;
+			InputStream is = null;
+			FileOutputStream out = null;
+			boolean keepPartial = false;
+			try {
+				long offset = 0;
+				String range = null;
+				if (meta != null) {
+					offset = partial.length();
+					range = "bytes=" + offset + "-";
+				}
+				urlConnection = connect(urlString, range, meta != null ? meta[0]
+						: null);
+				final int code = urlConnection.getResponseCode();
+				if (code == 416
+						|| (code == HttpURLConnection.HTTP_PARTIAL && (meta == null
+								|| getRangeStart(urlConnection) != offset))) {
+					// The partial file is no prefix of what the server
+					// sends, start over.
+					partial.delete();
+					metaFile.delete();
+					continue;
+				}
+				is = urlConnection.getInputStream();
+				long total;
+				if (code == HttpURLConnection.HTTP_PARTIAL) {
+					total = Long.parseLong(meta[1]);
+				} else {
+					// Range ignored or image changed, take the whole body.
+					offset = 0;
+					total = urlConnection.getContentLength();
+					final String validator = getValidator(urlConnection);
+					if (validator != null) {
+						writeMeta(metaFile, validator, total);
+					} else {
+						metaFile.delete();
+					}
+				}
+				keepPartial = metaFile.exists();
+				out = new FileOutputStream(partial, offset > 0);
+				copy(is, out, offset, total);
+				out.close();
+				out = null;
+				if (total >= 0 && partial.length() != total) {
+					throw new IOException("Incomplete download " + urlString);
+				}
+				file.delete();
+				if (!partial.renameTo(file)) {
+					keepPartial = false;
+					throw new IOException("Cannot rename " + partial);
+				}
+				metaFile.delete();
+				file.setLastModified(System.currentTimeMillis());
+				return;
+			} catch (IOException e) {
+				if (cancelled) {
+					throw new InterruptedIOException("Cancelled " + urlString);
+				}
+				e.printStackTrace();
+				throw e;
+			} catch (NumberFormatException e) {
+				keepPartial = false;
+				throw new IOException("Broken partial download " + partial);
+			} finally {
+				connection = null;
+				closeQuietly(is);
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						keepPartial = false;
+					}
+				}
+				if (!keepPartial) {
+					partial.delete();
+					metaFile.delete();
 				}
 			}
 		}
+		throw new IOException("Range not satisfiable " + urlString);
+	}
 
-		cacheFile.setLastModified(System.currentTimeMillis());
+	/**
+	 * Download a body of up to maxSize bytes into memory, so it can be decoded
+	 * right away. A larger body, or one without Content-Length which grows
+	 * past maxSize, is streamed into file instead.
+	 * 
+	 * @param file
+	 *            null to fail on a larger body.
+	 * @return the body, null if it was written to file.
+	 * @throws BodyTooLargeException
+	 *             without a file for a larger body. Content-Length is checked
+	 *             before any of it is read.
+	 */
+	public byte[] downloadInMemoryOrFile(String urlString, File file,
+			int maxSize) throws IOException {
+		return downloadInMemoryOrFile(urlString, file, null, maxSize);
 	}
 
+	/**
+	 * Like {@link #downloadInMemoryOrFile(String, File, int)}, but a larger
+	 * body goes to partial first, kept with the server's validator when the
+	 * download breaks off, so
+	 * {@link #downloadInFile(String, File, File, Context)} resumes it.
+	 * 
+	 * @param partial
+	 *            next to file, so it can be renamed into place. Null to
+	 *            write to file directly.
+	 */
+	public byte[] downloadInMemoryOrFile(String urlString, File file,
+			File partial, int maxSize) throws IOException {
+		HttpURLConnection urlConnection = null;
+		InputStream is = null;
+		FileOutputStream out = null;
+		boolean toFile = false;
+		final File target = partial != null ? partial : file;
+		final File metaFile = partial != null ? new File(partial.getPath()
+				+ ".meta") : null;
+		boolean keepPartial = false;
+		try {
+			urlConnection = connect(urlString, null, null);
+			final int contentLength = urlConnection.getContentLength();
+			if (file == null && contentLength > maxSize) {
+				urlConnection.disconnect();
+				throw new BodyTooLargeException(maxSize, urlString);
+			}
+			is = urlConnection.getInputStream();
+			final ProgressListener listener = progressListener;
+			byte[] data;
+			int filled = 0;
+			if (contentLength > maxSize) {
+				data = null;
+			} else {
+				data = new byte[contentLength >= 0 ? contentLength : Math.min(
+						BufferPool.BUFFER_SIZE, maxSize)];
+				int b;
+				while (true) {
+					if (filled == data.length) {
+						if (contentLength >= 0 || data.length >= maxSize) {
+							break;
+						}
+						final byte[] grown = new byte[Math.min(
+								data.length << 1, maxSize)];
+						System.arraycopy(data, 0, grown, 0, filled);
+						data = grown;
+					}
+					b = is.read(data, filled, data.length - filled);
+					if (b == -1) {
+						break;
+					}
+					checkCancelled();
+					filled += b;
+					if (listener != null) {
+						listener.onProgress(filled, contentLength);
+					}
+				}
+				checkCancelled();
+				if (contentLength >= 0) {
+					if (filled != contentLength) {
+						throw new IOException("Incomplete download "
+								+ urlString);
+					}
+					return data;
+				}
+				if (filled < data.length) {
+					final byte[] exact = new byte[filled];
+					System.arraycopy(data, 0, exact, 0, filled);
+					return exact;
+				}
+				// Reached maxSize with more to come, go on in file.
+			}
+			if (file == null) {
+				throw new BodyTooLargeException(maxSize, urlString);
+			}
+			toFile = true;
+			if (!target.exists()) {
+				target.getParentFile().mkdirs();
+			}
+			if (metaFile != null) {
+				final String validator = getValidator(urlConnection);
+				if (validator != null) {
+					writeMeta(metaFile, validator, contentLength);
+				} else {
+					metaFile.delete();
+				}
+				keepPartial = metaFile.exists();
+			}
+			out = new FileOutputStream(target);
+			if (filled > 0) {
+				out.write(data, 0, filled);
+				data = null;
+			}
+			copy(is, out, filled, contentLength);
+			out.close();
+			out = null;
+			if (contentLength >= 0 && target.length() != contentLength) {
+				throw new IOException("Incomplete download " + urlString);
+			}
+			if (partial != null) {
+				file.delete();
+				if (!partial.renameTo(file)) {
+					keepPartial = false;
+					throw new IOException("Cannot rename " + partial);
+				}
+				metaFile.delete();
+			}
+			return null;
+		} catch (IOException e) {
+			if (toFile) {
+				closeQuietly(out);
+				out = null;
+				if (!keepPartial) {
+					target.delete();
+					if (metaFile != null) {
+						metaFile.delete();
+					}
+				}
+			}
+			if (cancelled) {
+				throw new InterruptedIOException("Cancelled " + urlString);
+			}
+			e.printStackTrace();
+			throw e;
+		} finally {
+			connection = null;
+			closeQuietly(is);
+			closeQuietly(out);
+		}
+	}
+
+	/**
+	 * @return the response body, the caller has to read it to the end and
+	 *         close it, so the connection can be reused.
+	 */
 	public InputStream downloadInMemory(String urlString, Context context)
 			throws IOException {
 
 		HttpURLConnection urlConnection = null;
-		URL url;
 		InputStream is = null;
 		try {
-			url = new URL(urlString);
-			urlConnection = (HttpURLConnection) url
-					.openConnection();
-			if (urlConnection instanceof HttpsURLConnection) {
-				SSLSocketFactory sslSocketFactory = getTrustAllSSLSocketFactory();
-				if (sslSocketFactory != null) {
-					((HttpsURLConnection) urlConnection).setSSLSocketFactory(sslSocketFactory);
-				}
-			}
-			urlConnection.setConnectTimeout(20000);
-			urlConnection.setReadTimeout(20000);
+			urlConnection = connect(urlString, null, null);
 			is = urlConnection.getInputStream();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -106,6 +485,257 @@ public class HttpUtils {
 		return is;
 	}
 
+	/**
+	 * Send the request and wait for the response headers. With mirrors set,
+	 * the next mirror is asked as well whenever the ones asked so far are
+	 * slower than the hedge delay or fail, the first to answer wins and the
+	 * others are disconnected.
+	 * 
+	 * @param range
+	 *            value of the Range header, null for none.
+	 * @param ifRange
+	 *            value of the If-Range header, null for none.
+	 */
+	private HttpURLConnection connect(String urlString, String range,
+			String ifRange) throws IOException {
+		checkCancelled();
+		if (mirrors == null || mirrors.length == 0) {
+			final long start = System.nanoTime();
+			final HttpURLConnection urlConnection = transport.open(urlString);
+			connection = urlConnection;
+			setRange(urlConnection, range, ifRange);
+			final int code = urlConnection.getResponseCode();
+			if (hedgePolicy != null) {
+				hedgePolicy.record((System.nanoTime() - start) / 1000000);
+			}
+			checkStatus(urlConnection, code, range, urlString);
+			return urlConnection;
+		}
+		final String[] urls = new String[mirrors.length + 1];
+		urls[0] = urlString;
+		System.arraycopy(mirrors, 0, urls, 1, mirrors.length);
+		final long delay = hedgePolicy != null ? hedgePolicy.getDelay()
+				: transport instanceof UrlConnectionTransport ? ((UrlConnectionTransport) transport)
+						.getReadTimeout() : UrlConnectionTransport.DEFAULT_TIMEOUT;
+		final ExecutorCompletionService<HttpURLConnection> done = new ExecutorCompletionService<HttpURLConnection>(
+				HEDGE_EXECUTOR);
+		Attempt winner = null;
+		IOException failure = null;
+		int next = 0;
+		int pending = 0;
+		try {
+			start(done, urls[next++], range, ifRange);
+			pending++;
+			while (winner == null) {
+				checkCancelled();
+				final Future<HttpURLConnection> future = next < urls.length ? done
+						.poll(delay, TimeUnit.MILLISECONDS) : done.take();
+				if (future == null) {
+					// No headers within the delay, hedge with the next mirror.
+					start(done, urls[next++], range, ifRange);
+					pending++;
+					continue;
+				}
+				pending--;
+				try {
+					future.get();
+					synchronized (attempts) {
+						winner = attempts.get(future);
+					}
+				} catch (ExecutionException e) {
+					failure = e.getCause() instanceof IOException ? (IOException) e
+							.getCause() : new IOException(String.valueOf(e
+							.getCause()));
+					if (next < urls.length) {
+						start(done, urls[next++], range, ifRange);
+						pending++;
+					} else if (pending == 0) {
+						throw failure;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted " + urlString);
+		} finally {
+			synchronized (attempts) {
+				for (Attempt attempt : attempts.values()) {
+					if (attempt != winner) {
+						attempt.abandon();
+					}
+				}
+				attempts.clear();
+			}
+		}
+		connection = winner.connection;
+		checkCancelled();
+		return winner.connection;
+	}
+
+	private Future<HttpURLConnection> start(
+			ExecutorCompletionService<HttpURLConnection> done,
+			String urlString, String range, String ifRange) {
+		final Attempt attempt = new Attempt(urlString, range, ifRange);
+		synchronized (attempts) {
+			final Future<HttpURLConnection> future = done.submit(attempt);
+			attempts.put(future, attempt);
+			return future;
+		}
+	}
+
+	/**
+	 * @throws HttpStatusException
+	 *             for an error status, except 416 for a range request,
+	 *             which the resuming download handles itself.
+	 */
+	private static void checkStatus(HttpURLConnection urlConnection,
+			int code, String range, String urlString)
+			throws HttpStatusException {
+		if (code >= 400 && !(code == 416 && range != null)) {
+			urlConnection.disconnect();
+			throw new HttpStatusException(code, urlString);
+		}
+	}
+
+	private static void setRange(HttpURLConnection urlConnection,
+			String range, String ifRange) {
+		if (range != null) {
+			urlConnection.setRequestProperty("Range", range);
+			if (ifRange != null) {
+				urlConnection.setRequestProperty("If-Range", ifRange);
+			}
+		}
+	}
+
+	/**
+	 * One mirror asked by {@link #connect(String, String, String)}.
+	 */
+	private class Attempt implements Callable<HttpURLConnection> {
+		private final String urlString;
+		private final String range;
+		private final String ifRange;
+		private volatile HttpURLConnection connection;
+		private volatile boolean abandoned;
+
+		Attempt(String urlString, String range, String ifRange) {
+			this.urlString = urlString;
+			this.range = range;
+			this.ifRange = ifRange;
+		}
+
+		@Override
+		public HttpURLConnection call() throws IOException {
+			final long start = System.nanoTime();
+			final HttpURLConnection urlConnection = transport.open(urlString);
+			connection = urlConnection;
+			if (abandoned) {
+				urlConnection.disconnect();
+				throw new InterruptedIOException("Abandoned " + urlString);
+			}
+			setRange(urlConnection, range, ifRange);
+			final int code = urlConnection.getResponseCode();
+			if (abandoned) {
+				urlConnection.disconnect();
+				throw new InterruptedIOException("Abandoned " + urlString);
+			}
+			if (hedgePolicy != null) {
+				hedgePolicy.record((System.nanoTime() - start) / 1000000);
+			}
+			checkStatus(urlConnection, code, range, urlString);
+			return urlConnection;
+		}
+
+		void abandon() {
+			abandoned = true;
+			final HttpURLConnection c = connection;
+			if (c != null) {
+				c.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * @return first byte of a 206 response, -1 if unknown.
+	 */
+	private static long getRangeStart(HttpURLConnection urlConnection) {
+		// bytes <start>-<end>/<total>
+		final String range = urlConnection.getHeaderField("Content-Range");
+		if (range == null || !range.startsWith("bytes ")) {
+			return -1;
+		}
+		final int dash = range.indexOf('-');
+		try {
+			return dash < 0 ? -1 : Long.parseLong(range.substring(6, dash)
+					.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return a strong ETag or else Last-Modified, null if the response has
+	 *         neither.
+	 */
+	private static String getValidator(HttpURLConnection urlConnection) {
+		final String etag = urlConnection.getHeaderField("ETag");
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return urlConnection.getHeaderField("Last-Modified");
+	}
+
+	/**
+	 * @return validator and total length, null if there is no usable meta
+	 *         file.
+	 */
+	private static String[] readMeta(File metaFile) {
+		if (!metaFile.exists()) {
+			return null;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(metaFile), "UTF-8"));
+			final String validator = reader.readLine();
+			final String total = reader.readLine();
+			if (validator == null || total == null) {
+				return null;
+			}
+			return new String[] { validator, total };
+		} catch (IOException e) {
+			return null;
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+
+	private static void writeMeta(File metaFile, String validator, long total)
+			throws IOException {
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(metaFile),
+					"UTF-8");
+			writer.write(validator + "\n" + total + "\n");
+		} finally {
+			closeQuietly(writer);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void checkCancelled() throws InterruptedIOException {
+		if (cancelled) {
+			throw new InterruptedIOException("Cancelled");
+		}
+	}
+
 	private static SSLSocketFactory trustAllSSlSocketFactory;
 
 	public static SSLSocketFactory getTrustAllSSLSocketFactory() {
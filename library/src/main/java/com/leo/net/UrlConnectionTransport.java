@@ -0,0 +1,93 @@
+package com.leo.net;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link HttpTransport} on {@link HttpURLConnection}. The platform keeps
+ * idle keep-alive connections per host and reuses them, as long as every
+ * response body is read to the end and closed and all https connections use
+ * the same socket factory; this transport keeps the factory shared.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+	public static final int DEFAULT_TIMEOUT = 20000;
+
+	// Idle connections the platform pool keeps, one per download thread.
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+
+	private static UrlConnectionTransport defaultTransport;
+
+	private final int connectTimeout;
+
+	private final int readTimeout;
+
+	/**
+	 * @return the transport used unless another one is set.
+	 */
+	public synchronized static UrlConnectionTransport getDefault() {
+		if (defaultTransport == null) {
+			defaultTransport = new UrlConnectionTransport(DEFAULT_TIMEOUT,
+					DEFAULT_TIMEOUT, DEFAULT_MAX_IDLE_CONNECTIONS);
+		}
+		return defaultTransport;
+	}
+
+	/**
+	 * @param connectTimeout
+	 *            in milliseconds.
+	 * @param readTimeout
+	 *            in milliseconds.
+	 * @param maxIdleConnections
+	 *            size of the platform's keep-alive pool. It is process wide
+	 *            and read when the first connection is made.
+	 */
+	public UrlConnectionTransport(int connectTimeout, int readTimeout,
+			int maxIdleConnections) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		/**
+		 * Workaround for bug pre-Froyo, see here for more info:
+		 * http://android
+		 * -developers.blogspot.com/2011/09/androids-http-clients.html
+		 */
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+			System.setProperty("http.keepAlive", "false");
+		} else {
+			System.setProperty("http.keepAlive", "true");
+			System.setProperty("http.maxConnections",
+					String.valueOf(maxIdleConnections));
+		}
+	}
+
+	@Override
+	public HttpURLConnection open(String urlString) throws IOException {
+		final HttpURLConnection urlConnection = (HttpURLConnection) new URL(
+				urlString).openConnection();
+		if (urlConnection instanceof HttpsURLConnection) {
+			SSLSocketFactory sslSocketFactory = HttpUtils
+					.getTrustAllSSLSocketFactory();
+			if (sslSocketFactory != null) {
+				((HttpsURLConnection) urlConnection)
+						.setSSLSocketFactory(sslSocketFactory);
+			}
+		}
+		urlConnection.setConnectTimeout(connectTimeout);
+		urlConnection.setReadTimeout(readTimeout);
+		return urlConnection;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+}
@@ -1,14 +1,21 @@
 package com.leo.threadpool;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class AbstractCommand implements Comparable<AbstractCommand> {
 
-	private boolean commandSortByLatest = true;
+	// Orders commands created in the same millisecond.
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	boolean commandSortByLatest = true;
 	int priority;
 	long time;
+	final long sequence;
 
 	AbstractCommand(boolean commandSortByLatest) {
 		this.commandSortByLatest = commandSortByLatest;
 		this.time = System.currentTimeMillis();
+		this.sequence = SEQUENCE.getAndIncrement();
 	}
 
 	AbstractCommand(boolean commandSortByLatest, int priority) {
@@ -20,8 +27,12 @@ public class AbstractCommand implements Comparable<AbstractCommand> {
 	public int compareTo(AbstractCommand another) {
 		int result = another.priority - priority;
 		if (result == 0) {
-			result = (int) (commandSortByLatest ? (another.time - time)
-					: (time - another.time));
+			final long older = (time != another.time) ? time - another.time
+					: sequence - another.sequence;
+			result = older < 0 ? -1 : (older > 0 ? 1 : 0);
+			if (commandSortByLatest) {
+				result = -result;
+			}
 		}
 		return result;
 	}
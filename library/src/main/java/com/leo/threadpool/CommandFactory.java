@@ -19,6 +19,16 @@ public class CommandFactory {
         return task;
     }
 
+    /**
+     * @param group commands of one group share a running limit, may be null.
+     */
+    public PriorityTaskImpl getTask(String category, String group,
+                                    IPriorityTask runnable, int priority, ITaskHandler handler) {
+        PriorityTaskImpl task = getTask(category, runnable, priority, handler);
+        task.group = group;
+        return task;
+    }
+
     public PriorityTaskImpl getTask(String category, IPriorityTask runnable,
                                 ITaskHandler handler) {
         PriorityTaskImpl task = new PriorityTaskImpl(category, sortByLatest, runnable,
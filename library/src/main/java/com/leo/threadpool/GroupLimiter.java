@@ -0,0 +1,105 @@
+package com.leo.threadpool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Caps how many commands of one group, e.g. downloads from one host, run at
+ * the same time across all queues sharing the limiter. Commands without a
+ * group are never held back.
+ */
+class GroupLimiter {
+
+    private final HashMap<String, Integer> running = new HashMap<String, Integer>();
+    private final ArrayList<IndexedTaskQueue> queues = new ArrayList<IndexedTaskQueue>();
+    // 0 for no limit.
+    private int limit;
+
+    void register(IndexedTaskQueue queue) {
+        synchronized (this) {
+            queues.add(queue);
+        }
+    }
+
+    synchronized boolean canRun(String group) {
+        if (group == null || limit <= 0) {
+            return true;
+        }
+        final Integer count = running.get(group);
+        return count == null || count < limit;
+    }
+
+    /**
+     * Count cmd as running, the caller checked {@link #canRun(String)} while
+     * holding this.
+     */
+    synchronized void acquire(PriorityTaskImpl cmd) {
+        if (cmd.group == null) {
+            return;
+        }
+        final Integer count = running.get(cmd.group);
+        running.put(cmd.group, count == null ? 1 : count + 1);
+        cmd.holdsSlot = true;
+    }
+
+    /**
+     * Count cmd as running again after it gave its slot up with
+     * {@link #release(PriorityTaskImpl)} before running, waiting until its
+     * group is below the limit.
+     */
+    synchronized void reacquire(PriorityTaskImpl cmd)
+            throws InterruptedException {
+        while (!canRun(cmd.group)) {
+            wait();
+        }
+        acquire(cmd);
+    }
+
+    /**
+     * Called once cmd finished, or before it waits without running, wakes
+     * the queues holding back its group.
+     */
+    void release(PriorityTaskImpl cmd) {
+        synchronized (this) {
+            if (!cmd.holdsSlot) {
+                return;
+            }
+            cmd.holdsSlot = false;
+            final Integer count = running.get(cmd.group);
+            if (count == null || count <= 1) {
+                running.remove(cmd.group);
+            } else {
+                running.put(cmd.group, count - 1);
+            }
+            notifyAll();
+        }
+        wakeAll();
+    }
+
+    /**
+     * @param limit commands of one group running at once, 0 for no limit.
+     */
+    void setLimit(int limit) {
+        synchronized (this) {
+            this.limit = limit;
+            notifyAll();
+        }
+        wakeAll();
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    // Never called holding this, the queues take this while holding their
+    // own lock.
+    private void wakeAll() {
+        final IndexedTaskQueue[] snapshot;
+        synchronized (this) {
+            snapshot = queues.toArray(new IndexedTaskQueue[queues.size()]);
+        }
+        for (IndexedTaskQueue queue : snapshot) {
+            queue.wakeUp();
+        }
+    }
+}
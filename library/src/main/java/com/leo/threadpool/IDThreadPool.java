@@ -6,11 +6,58 @@ public interface IDThreadPool {
 
     void put(String category, IPriorityTask runnable, TaskPriority priority);
 
+    /**
+     * @param group tasks of one group, e.g. downloads from one host, share
+     *              the limit set by {@link #setGroupLimit(int)} and take
+     *              turns with other groups. May be null.
+     */
+    void put(String category, String group, IPriorityTask runnable,
+             TaskPriority priority);
+
+    /**
+     * @param maxRunning tasks of one group running at once across both lanes,
+     *                   0 for no limit.
+     */
+    void setGroupLimit(int maxRunning);
+
     void shutdownNow();
 
     void cancelQueueByCategory(String tag);
 
     void cancelQueueByTaskID(int taskId);
 
+    /**
+     * Move a task which is still queued to another priority.
+     *
+     * @return false if the task is not queued (running or done).
+     */
+    boolean changePriority(IPriorityTask runnable, TaskPriority priority);
+
+    /**
+     * Remove a task which is still queued.
+     *
+     * @return false if the task is not queued (running or done).
+     */
+    boolean cancelTask(IPriorityTask runnable);
+
+    /**
+     * Order queued tasks of the same priority in both lanes, the UI lane
+     * included, until {@link #resetOrder()}.
+     *
+     * @param newestFirst true to run them newest first, false oldest first.
+     */
+    void setNewestFirst(boolean newestFirst);
+
+    /**
+     * Go back to the order each lane was created with: newest first in the
+     * UI lane, oldest first in the background lane.
+     */
+    void resetOrder();
+
+    /**
+     * Resize both lanes. Running tasks finish, surplus threads end once idle.
+     */
+    void setPoolSize(int cowardSize, int tyrantSize);
+
     int getTaskCount();
 }
@@ -0,0 +1,576 @@
+package com.leo.threadpool;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unbounded blocking priority queue of {@link PriorityTaskImpl}, ordered like
+ * {@link java.util.concurrent.PriorityBlockingQueue}. Every queued command
+ * knows its slot in the heap, so it can be removed or re-prioritized in
+ * O(log n), and the queue keeps the commands of each category and of each
+ * task, so cancelling a screen only touches that screen's commands.
+ * <p>
+ * Commands are kept in one heap per group. A thread taking a command gets
+ * the best one of the groups which are below the limit of their
+ * {@link GroupLimiter}, groups with heads of the same priority take turns,
+ * so a slow group neither takes every thread nor makes the others wait.
+ * Without a limiter all commands are in one group.
+ */
+public class IndexedTaskQueue extends AbstractQueue<Runnable> implements
+        BlockingQueue<Runnable> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private final GroupLimiter limiter;
+
+    // Heaps of the groups with queued commands, and the same in the order
+    // they take turns.
+    private final HashMap<String, Heap> heaps = new HashMap<String, Heap>();
+    private final ArrayList<Heap> rotation = new ArrayList<Heap>();
+    // Index in rotation of the group whose turn is next.
+    private int turn;
+    private int size;
+
+    private final HashMap<String, LinkedHashSet<PriorityTaskImpl>> byCategory = new HashMap<String, LinkedHashSet<PriorityTaskImpl>>();
+    private final HashMap<IPriorityTask, PriorityTaskImpl> byTask = new HashMap<IPriorityTask, PriorityTaskImpl>();
+
+    public IndexedTaskQueue() {
+        this(null);
+    }
+
+    /**
+     * @param limiter caps the running commands of each group, may be null.
+     *                The executor taking from this queue has to call
+     *                {@link GroupLimiter#release(PriorityTaskImpl)} once a
+     *                command finished.
+     */
+    IndexedTaskQueue(GroupLimiter limiter) {
+        this.limiter = limiter;
+        if (limiter != null) {
+            limiter.register(this);
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable r) {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+        final PriorityTaskImpl cmd = (PriorityTaskImpl) r;
+        lock.lock();
+        try {
+            if (cmd.queue != null) {
+                throw new IllegalStateException("Command is queued already");
+            }
+            final String key = groupKey(cmd);
+            Heap heap = heaps.get(key);
+            if (heap == null) {
+                heap = new Heap();
+                heaps.put(key, heap);
+                rotation.add(heap);
+            }
+            cmd.queue = this;
+            heap.add(cmd);
+            size++;
+            LinkedHashSet<PriorityTaskImpl> members = byCategory
+                    .get(cmd.category);
+            if (members == null) {
+                members = new LinkedHashSet<PriorityTaskImpl>();
+                byCategory.put(cmd.category, members);
+            }
+            members.add(cmd);
+            if (cmd.runnable != null) {
+                byTask.put(cmd.runnable, cmd);
+            }
+            // The thread woken may find the group at its limit, wake all.
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Runnable r) {
+        offer(r);
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+        return offer(r);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return takeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            PriorityTaskImpl cmd;
+            while ((cmd = takeNext()) == null) {
+                notEmpty.await();
+            }
+            return cmd;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            PriorityTaskImpl cmd;
+            while ((cmd = takeNext()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return cmd;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            final int index = nextTurn();
+            return index < 0 ? null : rotation.get(index).elements[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof PriorityTaskImpl)) {
+            return false;
+        }
+        final PriorityTaskImpl cmd = (PriorityTaskImpl) o;
+        lock.lock();
+        try {
+            if (cmd.queue != this) {
+                return false;
+            }
+            removeAt(cmd);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof PriorityTaskImpl)) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return ((PriorityTaskImpl) o).queue == this;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all queued commands of a category.
+     *
+     * @return the removed commands.
+     */
+    public ArrayList<PriorityTaskImpl> removeCategory(String category) {
+        final ArrayList<PriorityTaskImpl> removed = new ArrayList<PriorityTaskImpl>();
+        lock.lock();
+        try {
+            final LinkedHashSet<PriorityTaskImpl> members = byCategory
+                    .get(category);
+            if (members != null) {
+                removed.addAll(members);
+                for (PriorityTaskImpl cmd : removed) {
+                    removeAt(cmd);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Remove the queued command running task.
+     *
+     * @return the removed command, null if task is not queued here.
+     */
+    public PriorityTaskImpl removeTask(IPriorityTask task) {
+        lock.lock();
+        try {
+            final PriorityTaskImpl cmd = byTask.get(task);
+            if (cmd != null) {
+                removeAt(cmd);
+            }
+            return cmd;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move the queued command running task to a new priority without
+     * taking it out of the queue.
+     *
+     * @return false if task is not queued here.
+     */
+    public boolean changePriority(IPriorityTask task, int priority) {
+        lock.lock();
+        try {
+            final PriorityTaskImpl cmd = byTask.get(task);
+            if (cmd == null) {
+                return false;
+            }
+            cmd.priority = priority;
+            heaps.get(groupKey(cmd)).update(cmd.heapIndex);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switch the queued commands between newest first and oldest first
+     * within a priority.
+     */
+    public void setSortByLatest(boolean sortByLatest) {
+        lock.lock();
+        try {
+            for (Heap heap : rotation) {
+                for (int i = 0; i < heap.size; i++) {
+                    heap.elements[i].commandSortByLatest = sortByLatest;
+                }
+                heap.heapify();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the limiter once a group may run another command.
+     */
+    void wakeUp() {
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            // Ignores the group limits, used when shutting down.
+            int n = 0;
+            while (size > 0 && n < maxElements) {
+                c.add(removeAt(rotation.get(0).elements[0]));
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            for (Heap heap : rotation) {
+                for (int i = 0; i < heap.size; i++) {
+                    heap.elements[i].queue = null;
+                    heap.elements[i].heapIndex = -1;
+                }
+            }
+            heaps.clear();
+            rotation.clear();
+            turn = 0;
+            size = 0;
+            byCategory.clear();
+            byTask.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        lock.lock();
+        try {
+            final Object[] result = new Object[size];
+            int n = 0;
+            for (Heap heap : rotation) {
+                System.arraycopy(heap.elements, 0, result, n, heap.size);
+                n += heap.size;
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot, in no particular order.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final Object[] snapshot = toArray();
+        return new Iterator<Runnable>() {
+            int cursor;
+            Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < snapshot.length;
+            }
+
+            @Override
+            public Runnable next() {
+                if (cursor >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                last = (Runnable) snapshot[cursor++];
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                IndexedTaskQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    private static String groupKey(PriorityTaskImpl cmd) {
+        return cmd.group == null ? "" : cmd.group;
+    }
+
+    /**
+     * @return index in rotation of the group to take the next command from,
+     * -1 if every group is empty or at its limit. The highest priority
+     * wins, groups take turns between heads of the same priority.
+     */
+    private int nextTurn() {
+        final int groups = rotation.size();
+        int best = -1;
+        int bestPriority = 0;
+        for (int i = 0; i < groups; i++) {
+            final int index = (turn + i) % groups;
+            final PriorityTaskImpl head = rotation.get(index).elements[0];
+            if ((best < 0 || head.priority > bestPriority)
+                    && (limiter == null || limiter.canRun(head.group))) {
+                best = index;
+                bestPriority = head.priority;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Remove the command to run next and count it as running in its group.
+     *
+     * @return null if every group is empty or at its limit.
+     */
+    private PriorityTaskImpl takeNext() {
+        if (size == 0) {
+            return null;
+        }
+        if (limiter == null) {
+            return take(nextTurn());
+        }
+        // Held while choosing, so queues sharing the limiter can't both take
+        // the last slot of a group.
+        synchronized (limiter) {
+            final int index = nextTurn();
+            final PriorityTaskImpl cmd = take(index);
+            if (cmd != null) {
+                limiter.acquire(cmd);
+            }
+            return cmd;
+        }
+    }
+
+    private PriorityTaskImpl take(int index) {
+        if (index < 0) {
+            return null;
+        }
+        final Heap heap = rotation.get(index);
+        final PriorityTaskImpl cmd = removeAt(heap.elements[0]);
+        // removeAt dropped the group from rotation if it ran empty, then the
+        // group after it is at index already.
+        final int groups = rotation.size();
+        if (groups > 0) {
+            turn = (heap.size == 0 ? index : index + 1) % groups;
+        }
+        return cmd;
+    }
+
+    private PriorityTaskImpl removeAt(PriorityTaskImpl cmd) {
+        final String key = groupKey(cmd);
+        final Heap heap = heaps.get(key);
+        heap.removeAt(cmd.heapIndex);
+        size--;
+        cmd.queue = null;
+        cmd.heapIndex = -1;
+        if (heap.size == 0) {
+            heaps.remove(key);
+            final int index = rotation.indexOf(heap);
+            rotation.remove(index);
+            if (index < turn) {
+                turn--;
+            }
+        }
+        final LinkedHashSet<PriorityTaskImpl> members = byCategory
+                .get(cmd.category);
+        if (members != null) {
+            members.remove(cmd);
+            if (members.isEmpty()) {
+                byCategory.remove(cmd.category);
+            }
+        }
+        if (cmd.runnable != null && byTask.get(cmd.runnable) == cmd) {
+            byTask.remove(cmd.runnable);
+        }
+        return cmd;
+    }
+
+    /**
+     * Binary heap of the commands of one group, every command knows its slot.
+     */
+    private static final class Heap {
+        PriorityTaskImpl[] elements = new PriorityTaskImpl[16];
+        int size;
+
+        void add(PriorityTaskImpl cmd) {
+            if (size == elements.length) {
+                elements = Arrays.copyOf(elements, size << 1);
+            }
+            cmd.heapIndex = size;
+            elements[size++] = cmd;
+            siftUp(cmd.heapIndex);
+        }
+
+        void removeAt(int index) {
+            final int last = --size;
+            if (index != last) {
+                final PriorityTaskImpl moved = elements[last];
+                elements[index] = moved;
+                moved.heapIndex = index;
+                update(index);
+            }
+            elements[last] = null;
+        }
+
+        /**
+         * Restore the order after the element at index changed.
+         */
+        void update(int index) {
+            siftDown(siftUp(index));
+        }
+
+        void heapify() {
+            for (int i = (size >>> 1) - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        /**
+         * @return the index the element at index ended up at.
+         */
+        private int siftUp(int index) {
+            final PriorityTaskImpl cmd = elements[index];
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+                final PriorityTaskImpl p = elements[parent];
+                if (cmd.compareTo(p) >= 0) {
+                    break;
+                }
+                elements[index] = p;
+                p.heapIndex = index;
+                index = parent;
+            }
+            elements[index] = cmd;
+            cmd.heapIndex = index;
+            return index;
+        }
+
+        private void siftDown(int index) {
+            final PriorityTaskImpl cmd = elements[index];
+            final int half = size >>> 1;
+            while (index < half) {
+                int child = (index << 1) + 1;
+                final int right = child + 1;
+                if (right < size && elements[right].compareTo(elements[child]) < 0) {
+                    child = right;
+                }
+                final PriorityTaskImpl c = elements[child];
+                if (cmd.compareTo(c) <= 0) {
+                    break;
+                }
+                elements[index] = c;
+                c.heapIndex = index;
+                index = child;
+            }
+            elements[index] = cmd;
+            cmd.heapIndex = index;
+        }
+    }
+}
@@ -5,6 +5,13 @@ public class PriorityTaskImpl extends AbstractCommand implements Runnable {
 	public IPriorityTask runnable;
 	private final ITaskHandler handler;
 	public String category;
+	// Queue holding this command and its slot there, see IndexedTaskQueue.
+	IndexedTaskQueue queue;
+	int heapIndex = -1;
+	// Commands of one group share a running limit, see GroupLimiter.
+	String group;
+	// Set while the command counts against the limit of its group.
+	boolean holdsSlot;
 
 	public PriorityTaskImpl(String category, boolean commandSortByLatest,
                             IPriorityTask runnable, ITaskHandler handler) {
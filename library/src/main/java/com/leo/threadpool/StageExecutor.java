@@ -0,0 +1,60 @@
+package com.leo.threadpool;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor for one stage of the loading pipeline (decode, transform,
+ * delivery). It has a fixed number of threads sized for the resource the
+ * stage uses and a bounded queue. When the queue is full the submitting
+ * thread waits for room, so a slow stage slows down the stage feeding it
+ * instead of piling up work, and no stage ever runs on the thread of
+ * another, e.g. nothing is decoded on a download thread.
+ * <p>
+ * Never submit from the main thread, nor from a stage back into itself.
+ */
+public class StageExecutor extends ThreadPoolExecutor {
+
+    // How often a waiting submitter checks for shutdown.
+    private static final long SHUTDOWN_CHECK_MILLIS = 100;
+
+    public StageExecutor(String name, int poolSize, int queueSize,
+                         int threadPriority) {
+        super(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize),
+                new PriorityThreadFactory(name, threadPriority),
+                new WaitForRoomPolicy());
+    }
+
+    /**
+     * Waits until the queue takes the task, discards it once the executor
+     * is shut down. An interrupt doesn't drop the task, the owner of the
+     * work would never hear of it, it is kept for the caller to see.
+     */
+    private static final class WaitForRoomPolicy implements
+            RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            boolean interrupted = false;
+            try {
+                while (!executor.isShutdown()) {
+                    try {
+                        if (executor.getQueue().offer(r,
+                                SHUTDOWN_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
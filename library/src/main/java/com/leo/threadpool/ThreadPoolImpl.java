@@ -2,6 +2,7 @@ package com.leo.threadpool;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -19,8 +20,15 @@ public class ThreadPoolImpl implements IDThreadPool {
     CommandFactory tyrantCommandFactory;
     CommandFactory cowardCommandFactory;
 
-    PriorityBlockingQueue<Runnable> tyrantQueue;
-    PriorityBlockingQueue<Runnable> cowradQueue;
+    // Order of each lane when not switched to newest first.
+    private static final boolean TYRANT_SORT_BY_LATEST = true;
+    private static final boolean COWARD_SORT_BY_LATEST = false;
+
+    IndexedTaskQueue tyrantQueue;
+    IndexedTaskQueue cowradQueue;
+
+    // Shared by both queues, the group limit spans the lanes.
+    private final GroupLimiter groupLimiter = new GroupLimiter();
 
     ConcurrentHashMap<String, IPriorityTask> taskManager = new ConcurrentHashMap<String, IPriorityTask>();
 
@@ -39,8 +47,8 @@ public class ThreadPoolImpl implements IDThreadPool {
                            long keepAliveTime, boolean sortByLatest) {
         ReentrantLock cowardPauseLock = new ReentrantLock();
         Condition unpaused = cowardPauseLock.newCondition();
-        tyrantQueue = new PriorityBlockingQueue<Runnable>();
-        cowradQueue = new PriorityBlockingQueue<Runnable>();
+        tyrantQueue = new IndexedTaskQueue(groupLimiter);
+        cowradQueue = new IndexedTaskQueue(groupLimiter);
         PriorityThreadFactory threadFactory = new PriorityThreadFactory(
                 "thread-pool", 10);
         tyrantExecuter = new TyrantExecutor(tyrantSize, despoticLimit, tyrantQueue,
@@ -48,8 +56,12 @@ public class ThreadPoolImpl implements IDThreadPool {
         cowardExecuter = new CowardExecutor(cowardSize,
                 tyrantExecuter.getChain(), cowradQueue, threadFactory,
                 cowardPauseLock, unpaused);
-        tyrantCommandFactory = new CommandFactory(true);
-        cowardCommandFactory = new CommandFactory(false);
+        // A core thread started by execute() runs its first command without
+        // taking it from the queue, past the group limit. Start them all now.
+        tyrantExecuter.prestartAllCoreThreads();
+        cowardExecuter.prestartAllCoreThreads();
+        tyrantCommandFactory = new CommandFactory(TYRANT_SORT_BY_LATEST);
+        cowardCommandFactory = new CommandFactory(COWARD_SORT_BY_LATEST);
         lock = new ReentrantLock();
     }
 
@@ -68,15 +80,15 @@ public class ThreadPoolImpl implements IDThreadPool {
         }
     };
 
-    private void execute(String category, IPriorityTask runnable,
+    private void execute(String category, String group, IPriorityTask runnable,
                          TaskPriority priority) {
         if (runnable != null) {
             if (priority.ordinal() > TaskPriority.BACK_MAX.ordinal()) {
-                tyrantExecuter.execute(tyrantCommandFactory.getTask(category, runnable,
-                        priority.ordinal(), th));
+                tyrantExecuter.execute(tyrantCommandFactory.getTask(category, group,
+                        runnable, priority.ordinal(), th));
             } else {
-                cowardExecuter.execute(cowardCommandFactory.getTask(category, runnable,
-                        priority.ordinal(), th));
+                cowardExecuter.execute(cowardCommandFactory.getTask(category, group,
+                        runnable, priority.ordinal(), th));
             }
         }
     }
@@ -94,6 +106,12 @@ public class ThreadPoolImpl implements IDThreadPool {
 
     public void put(String category, IPriorityTask runnable,
                     TaskPriority priority) throws NullPointerException {
+        put(category, null, runnable, priority);
+    }
+
+    @Override
+    public void put(String category, String group, IPriorityTask runnable,
+                    TaskPriority priority) throws NullPointerException {
         if (runnable == null) {
             throw new NullPointerException();
         }
@@ -104,11 +122,11 @@ public class ThreadPoolImpl implements IDThreadPool {
                 if (!taskManager.get(key).onRepeatPut(runnable)) {
                     runnable.isolateFlag();
                     taskManager.put(runnable.getFlag(), runnable);
-                    execute(category, runnable, priority);
+                    execute(category, group, runnable, priority);
                 }
             } else {
                 taskManager.put(runnable.getFlag(), runnable);
-                execute(category, runnable, priority);
+                execute(category, group, runnable, priority);
             }
         } finally {
             lock.unlock();
@@ -117,57 +135,111 @@ public class ThreadPoolImpl implements IDThreadPool {
 
     @Override
     public void cancelQueueByCategory(String category) {
-        ArrayList<Runnable> keys = new ArrayList<Runnable>();
-        ArrayList<Runnable> buffer = new ArrayList<Runnable>();
-        lock.lock();
-        try {
-            tyrantQueue.drainTo(keys);
-            for (Runnable cmd : keys) {
-                if (((PriorityTaskImpl) cmd).category.equals(category)) {
-                    buffer.add(cmd);
-                }
-            }
-            keys.removeAll(buffer);
-            tyrantQueue.addAll(keys);
-            keys.clear();
-            cowradQueue.drainTo(keys);
-            for (Runnable cmd : keys) {
-                if (((PriorityTaskImpl) cmd).category.equals(category)) {
-                    buffer.add(cmd);
-                }
-            }
-            keys.removeAll(buffer);
-            cowradQueue.addAll(keys);
-        } finally {
-            lock.unlock();
-        }
+        forget(tyrantQueue.removeCategory(category));
+        forget(cowradQueue.removeCategory(category));
     }
 
     @Override
     public void cancelQueueByTaskID(int taskId) {
+        ArrayList<IPriorityTask> needClean = new ArrayList<IPriorityTask>();
         lock.lock();
         try {
             Collection<IPriorityTask> ipts = taskManager.values();
-            ArrayList<IPriorityTask> needClean = new ArrayList<IPriorityTask>();
             for (IPriorityTask task : ipts) {
                 if (task.unregisterListener(taskId)) {
                     needClean.add(task);
                 }
             }
-            // clean in Queue.
-            if (needClean.size() > 0) {
-                ArrayList<Runnable> keys = new ArrayList<Runnable>();
-                ArrayList<Runnable> buffer = new ArrayList<Runnable>();
-                tyrantQueue.drainTo(keys);
-                PriorityTaskImpl pt;
-                for (Runnable cmd : keys) {
-                    pt = (PriorityTaskImpl) cmd;
-                    if (needClean.contains(pt.runnable)) {
-                        buffer.add(cmd);
-                    }
+        } finally {
+            lock.unlock();
+        }
+        // clean in Queue.
+        ArrayList<PriorityTaskImpl> removed = new ArrayList<PriorityTaskImpl>();
+        for (IPriorityTask task : needClean) {
+            PriorityTaskImpl cmd = tyrantQueue.removeTask(task);
+            if (cmd == null) {
+                cmd = cowradQueue.removeTask(task);
+            }
+            if (cmd != null) {
+                removed.add(cmd);
+            }
+        }
+        forget(removed);
+    }
+
+    @Override
+    public boolean changePriority(IPriorityTask runnable, TaskPriority priority) {
+        final boolean tyrant = priority.ordinal() > TaskPriority.BACK_MAX.ordinal();
+        if ((tyrant ? tyrantQueue : cowradQueue).changePriority(runnable,
+                priority.ordinal())) {
+            return true;
+        }
+        // Queued on the other executor, move it over.
+        final PriorityTaskImpl cmd = (tyrant ? cowradQueue : tyrantQueue)
+                .removeTask(runnable);
+        if (cmd == null) {
+            return false;
+        }
+        execute(cmd.category, cmd.group, runnable, priority);
+        return true;
+    }
+
+    @Override
+    public boolean cancelTask(IPriorityTask runnable) {
+        PriorityTaskImpl cmd = tyrantQueue.removeTask(runnable);
+        if (cmd == null) {
+            cmd = cowradQueue.removeTask(runnable);
+        }
+        if (cmd == null) {
+            return false;
+        }
+        ArrayList<PriorityTaskImpl> removed = new ArrayList<PriorityTaskImpl>(1);
+        removed.add(cmd);
+        forget(removed);
+        return true;
+    }
+
+    @Override
+    public void setGroupLimit(int maxRunning) {
+        groupLimiter.setLimit(maxRunning);
+    }
+
+    @Override
+    public void setNewestFirst(boolean newestFirst) {
+        setOrder(newestFirst, newestFirst);
+    }
+
+    @Override
+    public void resetOrder() {
+        setOrder(TYRANT_SORT_BY_LATEST, COWARD_SORT_BY_LATEST);
+    }
+
+    private void setOrder(boolean tyrantLatest, boolean cowardLatest) {
+        lock.lock();
+        try {
+            tyrantCommandFactory.sortByLatest = tyrantLatest;
+            cowardCommandFactory.sortByLatest = cowardLatest;
+        } finally {
+            lock.unlock();
+        }
+        tyrantQueue.setSortByLatest(tyrantLatest);
+        cowradQueue.setSortByLatest(cowardLatest);
+    }
+
+    /**
+     * Drop the flags of commands which were taken out of the queue without
+     * running, so the next put of the same flag runs again.
+     */
+    private void forget(List<PriorityTaskImpl> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            for (PriorityTaskImpl cmd : removed) {
+                if (cmd.runnable != null) {
+                    taskManager.remove(cmd.runnable.getFlag(), cmd.runnable);
                 }
-                keys.removeAll(buffer);
-                tyrantQueue.addAll(keys);
             }
         } finally {
             lock.unlock();
@@ -190,12 +262,26 @@ public class ThreadPoolImpl implements IDThreadPool {
             this.chain = _chain;
         }
 
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            groupLimiter.release((PriorityTaskImpl) r);
+        }
+
         protected void beforeExecute(Thread t, Runnable r) {
             super.beforeExecute(t, r);
+            final PriorityTaskImpl cmd = (PriorityTaskImpl) r;
+            boolean released = false;
             pauseLock.lock();
             try {
                 isPaused = !chain.allowBreath();
                 while (isPaused) {
+                    if (cmd.holdsSlot) {
+                        // Waiting with a slot of its group would hold back
+                        // the tyrant commands of the same group.
+                        groupLimiter.release(cmd);
+                        released = true;
+                    }
                     unpaused.await();
                     isPaused = !chain.allowBreath();
                 }
@@ -204,6 +290,14 @@ public class ThreadPoolImpl implements IDThreadPool {
             } finally {
                 pauseLock.unlock();
             }
+            if (released) {
+                try {
+                    groupLimiter.reacquire(cmd);
+                } catch (InterruptedException ie) {
+                    // Shutting down, runs without a slot.
+                    t.interrupt();
+                }
+            }
         }
     }
 
@@ -237,6 +331,7 @@ public class ThreadPoolImpl implements IDThreadPool {
         @Override
         protected void afterExecute(Runnable r, Throwable t) {
             super.afterExecute(r, t);
+            groupLimiter.release((PriorityTaskImpl) r);
             pauseLock.lock();
             try {
                 if (chain.allowBreath()) {
@@ -253,6 +348,24 @@ public class ThreadPoolImpl implements IDThreadPool {
         boolean allowBreath();
     }
 
+    @Override
+    public void setPoolSize(int cowardSize, int tyrantSize) {
+        resize(cowardExecuter, cowardSize);
+        resize(tyrantExecuter, tyrantSize);
+    }
+
+    private static void resize(ThreadPoolExecutor executor, int size) {
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+        // Same as in the constructor, new threads take from the queue.
+        executor.prestartAllCoreThreads();
+    }
+
     @Override
     public int getTaskCount() {
         return tyrantExecuter.getActiveCount() + cowardExecuter.getActiveCount();
@@ -13,6 +13,8 @@ import android.graphics.Paint;
 import android.media.ExifInterface;
 import android.os.Build;
 
+import com.leo.cache.BitmapPool;
+
 @TargetApi(Build.VERSION_CODES.ECLAIR)
 public class ImageUtil {
 
@@ -26,12 +28,24 @@ public class ImageUtil {
 	 * @return 去色后的图片
 	 */
 	public static Bitmap toGrayscale(Bitmap bmpOriginal) {
+		return toGrayscale(bmpOriginal, null);
+	}
+
+	/**
+	 * 图片去色,返回灰度图片
+	 * 
+	 * @param bmpOriginal
+	 *            传入的图片
+	 * @param pool
+	 *            输出图片优先从中复用, 可为null
+	 * @return 去色后的图片
+	 */
+	public static Bitmap toGrayscale(Bitmap bmpOriginal, BitmapPool pool) {
 		int width, height;
 		height = bmpOriginal.getHeight();
 		width = bmpOriginal.getWidth();
 
-		Bitmap bmpGrayscale = Bitmap
-				.createBitmap(width, height, Config.RGB_565);
+		Bitmap bmpGrayscale = createBitmap(pool, width, height, Config.RGB_565);
 		Canvas c = new Canvas(bmpGrayscale);
 		Paint paint = new Paint();
 		ColorMatrix cm = new ColorMatrix();
@@ -44,6 +58,11 @@ public class ImageUtil {
 
 	public static Bitmap adjustPhotoRotation(Bitmap bm,
 			final int orientationDegree) {
+		return adjustPhotoRotation(bm, orientationDegree, null);
+	}
+
+	public static Bitmap adjustPhotoRotation(Bitmap bm,
+			final int orientationDegree, BitmapPool pool) {
 
 		Matrix m = new Matrix();
 		m.setRotate(orientationDegree, (float) bm.getWidth() / 2,
@@ -65,7 +84,7 @@ public class ImageUtil {
 
 		m.postTranslate(targetX - x1, targetY - y1);
 
-		Bitmap bitmap = Bitmap.createBitmap(bm.getHeight(), bm.getWidth(),
+		Bitmap bitmap = createBitmap(pool, bm.getHeight(), bm.getWidth(),
 				Bitmap.Config.ARGB_8888);
 		Paint paint = new Paint();
 		Canvas canvas = new Canvas(bitmap);
@@ -74,6 +93,15 @@ public class ImageUtil {
 		return bitmap;
 	}
 
+	/**
+	 * 创建图片, pool不为null时优先复用其中的图片
+	 */
+	public static Bitmap createBitmap(BitmapPool pool, int width, int height,
+			Config config) {
+		return pool == null ? Bitmap.createBitmap(width, height, config) : pool
+				.getOrCreate(width, height, config);
+	}
+
 	public Bitmap cutBitmap(Bitmap bitmap) {
 		int cut_width;
 		int cut_height;
@@ -1,17 +1,63 @@
 package com.leo.util;
 
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 
 public class MD5Util {
 
-    public static String getStringMD5(String str) {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * MessageDigest.getInstance is slow and digests are not thread safe, so
+     * every thread keeps its own, together with a buffer for the encoded
+     * input.
+     */
+    private static final ThreadLocal<Hasher> HASHER = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            try {
+                return new Hasher(MessageDigest.getInstance("MD5"));
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    };
 
-        char[] charArray = str.toCharArray();
+    /**
+     * @return MD5 of the UTF-8 encoding of str, as 32 lower case hex digits.
+     */
+    public static String getStringMD5(String str) {
+        final Hasher hasher = HASHER.get();
+        if (hasher == null) {
+            return null;
+        }
+        final int length = hasher.encodeUtf8(str);
+        return hasher.digest(hasher.buffer, length);
+    }
 
-        return getCharArrayMD5(charArray);
+    /**
+     * The hash {@link #getStringMD5(String)} used to compute, which keeps only
+     * the low byte of every char. Same as getStringMD5 for ASCII strings,
+     * needed to find files cached under it for any other string.
+     */
+    public static String getLegacyStringMD5(String str) {
+        return getCharArrayMD5(str.toCharArray());
     }
 
+    /**
+     * @return true if str contains chars whose legacy hash differs from
+     * {@link #getStringMD5(String)}.
+     */
+    public static boolean hasLegacyMD5(String str) {
+        for (int i = 0, n = str.length(); i < n; i++) {
+            if (str.charAt(i) >= 0x80) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     public static String getCharArrayMD5(char[] charArray) {
         byte[] byteArray = new byte[charArray.length];
@@ -24,22 +70,68 @@ public class MD5Util {
 
 
     public static String getByteArrayMD5(byte[] byteArray) {
-        try {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md5.update(byteArray);
-            byte[] md5Bytes = md5.digest();
-            StringBuffer hexValue = new StringBuffer();
+        final Hasher hasher = HASHER.get();
+        if (hasher == null) {
+            return null;
+        }
+        return hasher.digest(byteArray, byteArray.length);
+    }
+
+    private static final class Hasher {
+        final MessageDigest md5;
+        final char[] hex = new char[32];
+        byte[] buffer = new byte[256];
+
+        Hasher(MessageDigest md5) {
+            this.md5 = md5;
+        }
+
+        String digest(byte[] input, int length) {
+            md5.update(input, 0, length);
+            final byte[] md5Bytes = md5.digest();
             for (int i = 0; i < md5Bytes.length; i++) {
-                int val = (md5Bytes[i]) & 0xff;
-                if (val < 16) {
-                    hexValue.append("0");
+                hex[i << 1] = HEX_DIGITS[(md5Bytes[i] >> 4) & 0xf];
+                hex[(i << 1) + 1] = HEX_DIGITS[md5Bytes[i] & 0xf];
+            }
+            return new String(hex);
+        }
+
+        /**
+         * Encode str as UTF-8 into buffer.
+         *
+         * @return number of bytes written.
+         */
+        int encodeUtf8(String str) {
+            final int n = str.length();
+            if (buffer.length < n * 3) {
+                buffer = new byte[n * 3];
+            }
+            final byte[] out = buffer;
+            int pos = 0;
+            for (int i = 0; i < n; i++) {
+                int c = str.charAt(i);
+                if (c < 0x80) {
+                    out[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[pos++] = (byte) (0xc0 | (c >> 6));
+                    out[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate((char) c) && i + 1 < n
+                        && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    c = Character.toCodePoint((char) c, str.charAt(++i));
+                    out[pos++] = (byte) (0xf0 | (c >> 18));
+                    out[pos++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+                    out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    out[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (c >= 0xd800 && c <= 0xdfff) {
+                    // Unpaired surrogate, encoded as '?' like String.getBytes.
+                    out[pos++] = '?';
+                } else {
+                    out[pos++] = (byte) (0xe0 | (c >> 12));
+                    out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    out[pos++] = (byte) (0x80 | (c & 0x3f));
                 }
-                hexValue.append(Integer.toHexString(val));
             }
-            return hexValue.toString();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+            return pos;
         }
     }
 }
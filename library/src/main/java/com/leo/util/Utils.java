@@ -51,14 +51,10 @@ public class Utils {
     }
 
     public static boolean hasJellyBeamMR2() {
-        return false;
-        // return Build.VERSION.SDK_INT >=
-        // android.os.Build.VERSION_CODES.JELLY_BEAN_MR2;
+        return Build.VERSION.SDK_INT >= 18;// Build.VERSION_CODES.JELLY_BEAN_MR2;
     }
 
     public static boolean hasKITKAT() {
-        return false;
-        // return Build.VERSION.SDK_INT >=
-        // android.os.Build.VERSION_CODES.KITKAT;
+        return Build.VERSION.SDK_INT >= 19;// Build.VERSION_CODES.KITKAT;
     }
 }
@@ -0,0 +1,97 @@
+package com.leo.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.widget.ImageView;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class ActiveResourcesTest {
+
+	private static final CacheKey A = new CacheKey("http://example.com/a.jpg",
+			100, 100, 0, 0);
+	private static final CacheKey B = new CacheKey("http://example.com/b.jpg",
+			100, 100, 0, 0);
+
+	private int pooled;
+	private final ArrayList<Runnable> posted = new ArrayList<Runnable>();
+	private ActiveResources resources;
+
+	@Before
+	public void setUp() {
+		final BitmapPool pool = new BitmapPool(1024) {
+			@Override
+			public synchronized boolean put(Bitmap bitmap) {
+				pooled++;
+				return true;
+			}
+		};
+		resources = new ActiveResources(pool, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				posted.add(command);
+			}
+		});
+	}
+
+	private void runPosted() {
+		for (Runnable r : posted) {
+			r.run();
+		}
+		posted.clear();
+	}
+
+	@Test
+	public void replacedImageIsPooledOnlyAfterThePostedSet() {
+		final ImageView view = new ImageView(null);
+		final BitmapDrawable a = new BitmapDrawable(null, (Bitmap) null);
+		resources.bind(view, A, a);
+		// Evicted while shown, it waits for the view.
+		assertFalse(resources.onEvicted(a));
+
+		resources.bind(view, B, new BitmapDrawable(null, (Bitmap) null));
+		assertEquals(0, pooled);
+		assertSame(a, resources.get(A));
+		runPosted();
+		assertEquals(1, pooled);
+		assertEquals(null, resources.get(A));
+	}
+
+	@Test
+	public void cachedImageIsNotPooledWhenReplaced() {
+		final ImageView view = new ImageView(null);
+		resources.bind(view, A, new BitmapDrawable(null, (Bitmap) null));
+		resources.bind(view, B, new BitmapDrawable(null, (Bitmap) null));
+		runPosted();
+		assertEquals(0, pooled);
+	}
+
+	@Test
+	public void escapedImageIsNeverPooled() {
+		final ImageView view = new ImageView(null);
+		final BitmapDrawable a = new BitmapDrawable(null, (Bitmap) null);
+		resources.escape(a);
+		resources.bind(view, A, a);
+		resources.onEvicted(a);
+		resources.bind(view, B, new BitmapDrawable(null, (Bitmap) null));
+		runPosted();
+		assertEquals(0, pooled);
+	}
+
+	@Test
+	public void heldImageWaitsForItsRelease() {
+		final BitmapDrawable a = new BitmapDrawable(null, (Bitmap) null);
+		resources.hold(A, a);
+		assertFalse(resources.onEvicted(a));
+		resources.release(a);
+		assertEquals(1, pooled);
+	}
+}
@@ -0,0 +1,62 @@
+package com.leo.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheKeyTest {
+
+	private static final String URL = "http://example.com/a.jpg";
+
+	@Test
+	public void gifSupportIsPartOfTheKey() {
+		final CacheKey frame = new CacheKey(URL, 100, 100, 0, 0);
+		final CacheKey gif = new CacheKey(URL, 100, 100, CacheKey.FLAG_GIF, 0);
+		assertNotEquals(frame, gif);
+		assertFalse(frame.canServe(gif));
+		assertFalse(gif.canServe(frame));
+	}
+
+	@Test
+	public void largerVariantServesSmallerRequest() {
+		final CacheKey large = new CacheKey(URL, 200, 200, 0, 0);
+		final CacheKey small = new CacheKey(URL, 100, 100, 0, 0);
+		assertTrue(large.canServe(small));
+		assertFalse(small.canServe(large));
+		assertTrue(large.canServe(large));
+	}
+
+	@Test
+	public void scaledVariantNeedsSameAspectRatio() {
+		final CacheKey large = new CacheKey(URL, 200, 200, CacheKey.FLAG_SCALE,
+				0);
+		assertTrue(large.canServe(new CacheKey(URL, 100, 100,
+				CacheKey.FLAG_SCALE, 0)));
+		assertFalse(large.canServe(new CacheKey(URL, 100, 50,
+				CacheKey.FLAG_SCALE, 0)));
+	}
+
+	@Test
+	public void fullSizeServesUnscaledRequestsOnly() {
+		final CacheKey full = new CacheKey(URL, -1, -1, 0, 0);
+		assertTrue(full.canServe(new CacheKey(URL, 300, 100, 0, 0)));
+		assertFalse(new CacheKey(URL, 300, 300, 0, 0).canServe(full));
+		final CacheKey fullScaled = new CacheKey(URL, -1, -1,
+				CacheKey.FLAG_SCALE, 0);
+		assertFalse(fullScaled.canServe(new CacheKey(URL, 100, 100,
+				CacheKey.FLAG_SCALE, 0)));
+	}
+
+	@Test
+	public void otherOptionsOrSourceNeverServe() {
+		final CacheKey large = new CacheKey(URL, 200, 200, 0, 0);
+		assertFalse(large.canServe(new CacheKey(URL, 100, 100,
+				CacheKey.FLAG_GREY, 0)));
+		assertFalse(large.canServe(new CacheKey("http://example.com/b.jpg",
+				100, 100, 0, 0)));
+		final CacheKey rounded = new CacheKey(URL, 200, 200, 0, 8);
+		assertFalse(rounded.canServe(new CacheKey(URL, 100, 100, 0, 8)));
+	}
+}
@@ -0,0 +1,67 @@
+package com.leo.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FailedUrlCacheTest {
+
+	private static class Clocked extends FailedUrlCache {
+		long time = 1000;
+
+		Clocked(int maxEntries, long ttlMillis) {
+			super(maxEntries, ttlMillis);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	@Test
+	public void failedUrlIsRememberedForTheTtl() {
+		final Clocked cache = new Clocked(8, 100);
+		cache.put("a");
+		assertTrue(cache.contains("a"));
+		cache.time += 99;
+		assertTrue(cache.contains("a"));
+		cache.time += 1;
+		assertFalse(cache.contains("a"));
+		// Expired for good, not back once the clock moves on.
+		assertFalse(cache.contains("a"));
+	}
+
+	@Test
+	public void failingAgainStartsANewTtl() {
+		final Clocked cache = new Clocked(8, 100);
+		cache.put("a");
+		cache.time += 80;
+		cache.put("a");
+		cache.time += 80;
+		assertTrue(cache.contains("a"));
+	}
+
+	@Test
+	public void keepsTheMostRecentFailuresOnly() {
+		final Clocked cache = new Clocked(2, 100);
+		cache.put("a");
+		cache.put("b");
+		cache.put("a");
+		cache.put("c");
+		assertTrue(cache.contains("a"));
+		assertFalse(cache.contains("b"));
+		assertTrue(cache.contains("c"));
+	}
+
+	@Test
+	public void zeroTtlRemembersNothing() {
+		final Clocked cache = new Clocked(8, 100);
+		cache.put("a");
+		cache.setTtl(0);
+		assertFalse(cache.contains("a"));
+		cache.put("b");
+		assertFalse(cache.contains("b"));
+	}
+}
@@ -0,0 +1,55 @@
+package com.leo.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrequencySketchTest {
+
+	private static int hash(int i) {
+		return i * 0x9e3779b9;
+	}
+
+	@Test
+	public void countsUsesUpToFifteen() {
+		final FrequencySketch sketch = new FrequencySketch(64);
+		assertEquals(0, sketch.frequency(hash(1)));
+		for (int i = 0; i < 5; i++) {
+			sketch.increment(hash(1));
+		}
+		assertEquals(5, sketch.frequency(hash(1)));
+		for (int i = 0; i < 20; i++) {
+			sketch.increment(hash(1));
+		}
+		assertEquals(15, sketch.frequency(hash(1)));
+	}
+
+	@Test
+	public void neverUnderestimates() {
+		final FrequencySketch sketch = new FrequencySketch(256);
+		for (int key = 0; key < 200; key++) {
+			for (int i = 0; i < key % 8; i++) {
+				sketch.increment(hash(key));
+			}
+		}
+		for (int key = 0; key < 200; key++) {
+			assertTrue(sketch.frequency(hash(key)) >= key % 8);
+		}
+	}
+
+	@Test
+	public void oldUsesFade() {
+		final FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 15; i++) {
+			sketch.increment(hash(1));
+		}
+		// Halved after ten uses per expected key.
+		int other = 2;
+		while (sketch.frequency(hash(1)) == 15 && other < 2000) {
+			sketch.increment(hash(other++));
+		}
+		assertTrue(other < 2000);
+		assertEquals(7, sketch.frequency(hash(1)));
+	}
+}
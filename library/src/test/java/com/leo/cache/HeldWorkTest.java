@@ -0,0 +1,102 @@
+package com.leo.cache;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HeldWorkTest {
+
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	private static class FakeOwner implements HeldWork.Owner {
+		boolean active = true;
+		boolean abandoned;
+
+		@Override
+		public boolean isActive() {
+			return active;
+		}
+
+		@Override
+		public void abandon() {
+			abandoned = true;
+		}
+	}
+
+	@Test
+	public void drainsOldestFirst() {
+		final HeldWork held = new HeldWork(8);
+		final Runnable[] work = new Runnable[3];
+		for (int i = 0; i < work.length; i++) {
+			work[i] = new Runnable() {
+				@Override
+				public void run() {
+				}
+			};
+			assertNull(held.add(null, work[i], new FakeOwner()));
+		}
+		final List<HeldWork.Item> drained = held.drain();
+		assertEquals(3, drained.size());
+		for (int i = 0; i < work.length; i++) {
+			assertSame(work[i], drained.get(i).work);
+		}
+		assertEquals(0, held.size());
+	}
+
+	@Test
+	public void fullQueueAbandonsInactiveOwnersFirst() {
+		final HeldWork held = new HeldWork(3);
+		final FakeOwner first = new FakeOwner();
+		final FakeOwner gone = new FakeOwner();
+		final FakeOwner third = new FakeOwner();
+		held.add(null, NOTHING, first);
+		held.add(null, NOTHING, gone);
+		held.add(null, NOTHING, third);
+		gone.active = false;
+
+		assertNull(held.add(null, NOTHING, new FakeOwner()));
+		assertTrue(gone.abandoned);
+		assertFalse(first.abandoned);
+		assertEquals(3, held.size());
+		final List<HeldWork.Item> drained = held.drain();
+		assertSame(first, drained.get(0).owner);
+		assertSame(third, drained.get(1).owner);
+	}
+
+	@Test
+	public void fullQueueOfActiveWorkPushesOutTheOldest() {
+		final HeldWork held = new HeldWork(2);
+		final FakeOwner first = new FakeOwner();
+		final FakeOwner second = new FakeOwner();
+		held.add(null, NOTHING, first);
+		held.add(null, NOTHING, second);
+
+		final FakeOwner third = new FakeOwner();
+		final HeldWork.Item pushedOut = held.add(null, NOTHING, third);
+		assertSame(first, pushedOut.owner);
+		assertFalse(first.abandoned);
+		assertEquals(2, held.size());
+		final List<HeldWork.Item> drained = held.drain();
+		assertSame(second, drained.get(0).owner);
+		assertSame(third, drained.get(1).owner);
+	}
+
+	@Test
+	public void neverGrowsPastCapacity() {
+		final HeldWork held = new HeldWork(4);
+		for (int i = 0; i < 100; i++) {
+			held.add(null, NOTHING, i % 2 == 0 ? null : new FakeOwner());
+		}
+		assertEquals(4, held.size());
+	}
+}
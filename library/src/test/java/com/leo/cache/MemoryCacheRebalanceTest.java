@@ -0,0 +1,142 @@
+package com.leo.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class MemoryCacheRebalanceTest {
+
+	private static final int IMAGE_SIZE = 1000;
+
+	private static MemoryCache newCache(int images) {
+		return new MemoryCache(images * IMAGE_SIZE, null) {
+			@Override
+			int sizeOf(BitmapDrawable value) {
+				return IMAGE_SIZE;
+			}
+		};
+	}
+
+	private static CacheKey key(int image) {
+		return new CacheKey("http://example.com/" + image + ".jpg", 100, 100,
+				0, 0);
+	}
+
+	/**
+	 * Images by rank, the first ones asked for much more often.
+	 */
+	private static int[] zipfTrace(int images, int length, long seed) {
+		final double[] cumulative = new double[images];
+		double sum = 0;
+		for (int i = 0; i < images; i++) {
+			sum += 1 / Math.pow(i + 1, 0.9);
+			cumulative[i] = sum;
+		}
+		final Random random = new Random(seed);
+		final int[] trace = new int[length];
+		for (int i = 0; i < length; i++) {
+			final double r = random.nextDouble() * sum;
+			int lo = 0;
+			int hi = images - 1;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (cumulative[mid] < r) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			trace[i] = lo;
+		}
+		return trace;
+	}
+
+	private static float replay(MemoryCache cache, int[] trace) {
+		for (int image : trace) {
+			final CacheKey key = key(image);
+			if (cache.get(key) == null) {
+				cache.put(key, new BitmapDrawable(null, (Bitmap) null));
+			}
+		}
+		return cache.getHitRatio();
+	}
+
+	private static float replayUnsegmented(final int images, int[] trace) {
+		final LinkedHashMap<Integer, Boolean> lru = new LinkedHashMap<Integer, Boolean>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, Boolean> eldest) {
+				return size() > images;
+			}
+		};
+		int hits = 0;
+		for (int image : trace) {
+			if (lru.get(image) != null) {
+				hits++;
+			} else {
+				lru.put(image, Boolean.TRUE);
+			}
+		}
+		return (float) hits / trace.length;
+	}
+
+	@Test
+	public void hitRatioKeepsUpWithAnUnsegmentedLru() {
+		for (long seed = 1; seed <= 3; seed++) {
+			final int[] trace = zipfTrace(5000, 200000, seed);
+			final float unsegmented = replayUnsegmented(500, trace);
+			final float segmented = replay(newCache(500), trace);
+			assertTrue(segmented + " vs " + unsegmented,
+					segmented >= unsegmented - 0.005f);
+		}
+	}
+
+	@Test
+	public void evenlySpreadImagesFillTheWholeBudget() {
+		final MemoryCache cache = newCache(400);
+		final int[] trace = new int[100000];
+		final Random random = new Random(7);
+		// Fits with room to spare, every image stays once it was loaded.
+		for (int i = 0; i < trace.length; i++) {
+			trace[i] = random.nextInt(300);
+		}
+		replay(cache, trace);
+		int cached = 0;
+		for (int i = 0; i < 300; i++) {
+			if (cache.get(key(i)) != null) {
+				cached++;
+			}
+		}
+		assertTrue(cached + " of 300", cached == 300);
+	}
+
+	@Test
+	public void busySegmentGetsTheSharedBudget() {
+		// Even shares hold 100 images, one segment may grow to 450.
+		final MemoryCache cache = newCache(800);
+		final int[] busy = new int[300];
+		for (int image = 0, found = 0; found < busy.length; image++) {
+			if (MemoryCache.segmentIndex(key(image)) == 0) {
+				busy[found++] = image;
+			}
+		}
+		final int[] trace = new int[30000];
+		for (int i = 0; i < trace.length; i++) {
+			trace[i] = busy[i % busy.length];
+		}
+		replay(cache, trace);
+		for (int image : busy) {
+			assertTrue(cache.get(key(image)) != null);
+		}
+	}
+}
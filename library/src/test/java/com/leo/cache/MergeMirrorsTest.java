@@ -0,0 +1,40 @@
+package com.leo.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MergeMirrorsTest {
+
+	private static final String URL = "http://a.example.com/1.jpg";
+	private static final String B = "http://b.example.com/1.jpg";
+	private static final String C = "http://c.example.com/1.jpg";
+
+	@Test
+	public void joiningMirrorsAreAddedToALeaderWithoutAny() {
+		assertArrayEquals(new String[] { B, C },
+				CacheLoader.mergeMirrors(URL, null, new String[] { B, C }));
+	}
+
+	@Test
+	public void leaderMirrorsComeFirstWithoutDuplicates() {
+		assertArrayEquals(new String[] { C, B }, CacheLoader.mergeMirrors(URL,
+				new String[] { C }, new String[] { B, C }));
+	}
+
+	@Test
+	public void theDownloadedUrlIsNoMirror() {
+		final String[] mirrors = { B };
+		assertSame(mirrors, CacheLoader.mergeMirrors(URL, mirrors,
+				new String[] { URL, B }));
+	}
+
+	@Test
+	public void nothingToAdd() {
+		final String[] mirrors = { B };
+		assertSame(mirrors, CacheLoader.mergeMirrors(URL, mirrors, null));
+		assertNull(CacheLoader.mergeMirrors(URL, null, new String[0]));
+	}
+}
@@ -0,0 +1,65 @@
+package com.leo.cache;
+
+import com.leo.net.BodyTooLargeException;
+import com.leo.net.HttpStatusException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+	private static final String URL = "http://example.com/a.jpg";
+
+	/** Always the shortest or always the longest wait. */
+	private static Random fixed(final double value) {
+		return new Random() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public double nextDouble() {
+				return value;
+			}
+		};
+	}
+
+	@Test
+	public void transientFailuresBackOffExponentiallyThenGiveUp() {
+		final RetryPolicy shortest = new RetryPolicy(2, 1000, fixed(0));
+		final RetryPolicy longest = new RetryPolicy(2, 1000, fixed(0.999));
+		final IOException timeout = new SocketTimeoutException();
+		assertEquals(500, shortest.delayBeforeRetry(timeout, 0));
+		assertEquals(1000, shortest.delayBeforeRetry(timeout, 1));
+		assertTrue(longest.delayBeforeRetry(timeout, 0) < 1000);
+		assertTrue(longest.delayBeforeRetry(timeout, 1) < 2000);
+		assertEquals(RetryPolicy.GIVE_UP, shortest.delayBeforeRetry(timeout, 2));
+	}
+
+	@Test
+	public void serverErrorsThrottlingAndTimeoutsAreRetried() {
+		final RetryPolicy policy = new RetryPolicy(2, 1000, fixed(0));
+		for (int code : new int[] { 500, 503, 408, 429 }) {
+			final HttpStatusException e = new HttpStatusException(code, URL);
+			assertFalse(RetryPolicy.isPermanent(e));
+			assertTrue(policy.delayBeforeRetry(e, 0) > 0);
+		}
+	}
+
+	@Test
+	public void permanentFailuresAreNeverRetried() {
+		final RetryPolicy policy = new RetryPolicy(2, 1000, fixed(0));
+		final IOException[] permanent = { new HttpStatusException(404, URL),
+				new HttpStatusException(403, URL),
+				new BodyTooLargeException(1000, URL) };
+		for (IOException e : permanent) {
+			assertTrue(RetryPolicy.isPermanent(e));
+			assertEquals(RetryPolicy.GIVE_UP, policy.delayBeforeRetry(e, 0));
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.leo.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class TinyLfuAdmissionTest {
+
+	private static final int IMAGE_SIZE = 1000;
+
+	private static MemoryCache newCache(int images, MemoryCache.Policy policy) {
+		return new MemoryCache(images * IMAGE_SIZE, null, policy) {
+			@Override
+			int sizeOf(BitmapDrawable value) {
+				return IMAGE_SIZE;
+			}
+		};
+	}
+
+	private static CacheKey key(int image) {
+		return new CacheKey("http://example.com/" + image + ".jpg", 100, 100,
+				0, 0);
+	}
+
+	/**
+	 * Every other lookup is one of 100 images used again and again, the
+	 * others scroll through images seen once.
+	 */
+	private static float replayScrollOverHotImages(MemoryCache cache) {
+		final Random random = new Random(3);
+		int oneOff = 1000;
+		for (int i = 0; i < 100000; i++) {
+			final int image = random.nextBoolean() ? random.nextInt(100)
+					: oneOff++;
+			if (cache.get(key(image)) == null) {
+				cache.put(key(image), new BitmapDrawable(null, (Bitmap) null));
+			}
+		}
+		return cache.getHitRatio();
+	}
+
+	@Test
+	public void scrollDoesNotFlushImagesUsedAgain() {
+		final float lru = replayScrollOverHotImages(newCache(150,
+				MemoryCache.Policy.LRU));
+		final float tinyLfu = replayScrollOverHotImages(newCache(150,
+				MemoryCache.Policy.TINY_LFU));
+		// All hot lookups hit at best, half of them.
+		assertTrue(tinyLfu + " vs " + lru, tinyLfu > lru + 0.1f);
+		assertTrue(String.valueOf(tinyLfu), tinyLfu > 0.4f);
+	}
+}
@@ -0,0 +1,129 @@
+package com.leo.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves one body from memory, honouring Range and If-Range like a server
+ * with a strong ETag would.
+ */
+class FakeTransport implements HttpTransport {
+
+	final byte[] body;
+	String etag = "\"v1\"";
+	boolean sendContentLength = true;
+	// Bytes of the body sent before the connection breaks, -1 for all.
+	int breakAfter = -1;
+
+	final List<FakeConnection> opened = new ArrayList<FakeConnection>();
+
+	FakeTransport(byte[] body) {
+		this.body = body;
+	}
+
+	@Override
+	public HttpURLConnection open(String urlString) throws IOException {
+		final FakeConnection c = new FakeConnection(new URL(urlString));
+		opened.add(c);
+		return c;
+	}
+
+	FakeConnection last() {
+		return opened.get(opened.size() - 1);
+	}
+
+	class FakeConnection extends HttpURLConnection {
+		final Map<String, String> requestHeaders = new HashMap<String, String>();
+		boolean bodyRead;
+		private int start;
+		private boolean partialContent;
+
+		FakeConnection(URL url) {
+			super(url);
+		}
+
+		@Override
+		public void setRequestProperty(String key, String value) {
+			requestHeaders.put(key, value);
+		}
+
+		@Override
+		public int getResponseCode() {
+			final String range = requestHeaders.get("Range");
+			final String ifRange = requestHeaders.get("If-Range");
+			if (range != null && (ifRange == null || ifRange.equals(etag))) {
+				start = Integer.parseInt(range.substring("bytes=".length(),
+						range.indexOf('-')));
+				if (start >= body.length) {
+					return 416;
+				}
+				partialContent = true;
+				return 206;
+			}
+			return 200;
+		}
+
+		@Override
+		public int getContentLength() {
+			return sendContentLength ? body.length - start : -1;
+		}
+
+		@Override
+		public String getHeaderField(String name) {
+			if ("ETag".equalsIgnoreCase(name)) {
+				return etag;
+			}
+			if ("Content-Range".equalsIgnoreCase(name) && partialContent) {
+				return "bytes " + start + "-" + (body.length - 1) + "/"
+						+ body.length;
+			}
+			return null;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			bodyRead = true;
+			final int end = breakAfter >= 0 ? Math.min(body.length,
+					start + breakAfter) : body.length;
+			final boolean broken = end < body.length;
+			final ByteArrayInputStream in = new ByteArrayInputStream(body,
+					start, end - start);
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					final byte[] one = new byte[1];
+					return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					final int n = in.read(b, off, len);
+					if (n == -1 && broken) {
+						throw new IOException("Connection reset");
+					}
+					return n;
+				}
+			};
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public boolean usingProxy() {
+			return false;
+		}
+
+		@Override
+		public void connect() {
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.leo.net;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class InMemoryDownloadTest {
+
+	private static final String URL = "http://example.com/a.jpg";
+
+	private static byte[] body(int size) {
+		final byte[] body = new byte[size];
+		Arrays.fill(body, (byte) 7);
+		return body;
+	}
+
+	@Test
+	public void smallBodyStaysInMemory() throws Exception {
+		final FakeTransport server = new FakeTransport(body(100));
+		final byte[] data = new HttpUtils(server).downloadInMemoryOrFile(URL,
+				null, 1000);
+		assertArrayEquals(server.body, data);
+	}
+
+	@Test
+	public void tooLargeBodyFailsBeforeItIsRead() throws Exception {
+		final FakeTransport server = new FakeTransport(body(2000));
+		try {
+			new HttpUtils(server).downloadInMemoryOrFile(URL, null, 1000);
+			fail();
+		} catch (BodyTooLargeException e) {
+			assertEquals(1000, e.getMaxSize());
+		}
+		assertFalse(server.last().bodyRead);
+	}
+
+	@Test
+	public void bodyWithoutLengthFailsOnceItOutgrowsTheLimit()
+			throws Exception {
+		final FakeTransport server = new FakeTransport(body(20000));
+		server.sendContentLength = false;
+		try {
+			new HttpUtils(server).downloadInMemoryOrFile(URL, null, 10000);
+			fail();
+		} catch (BodyTooLargeException e) {
+			assertEquals(10000, e.getMaxSize());
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.leo.net;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResumeDownloadTest {
+
+	private static final String URL = "http://example.com/a.jpg";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private File partial;
+	private File meta;
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), "a");
+		partial = new File(folder.getRoot(), "a.partial");
+		meta = new File(folder.getRoot(), "a.partial.meta");
+	}
+
+	private static byte[] body(int size) {
+		final byte[] body = new byte[size];
+		for (int i = 0; i < size; i++) {
+			body[i] = (byte) i;
+		}
+		return body;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < data.length) {
+				n += in.read(data, n, data.length - n);
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private void downloadBroken(HttpUtils client) {
+		try {
+			client.downloadInFile(URL, file, partial, null);
+			fail();
+		} catch (IOException e) {
+			// Broke off as intended.
+		}
+	}
+
+	@Test
+	public void brokenDownloadResumesWithARangeRequest() throws Exception {
+		final FakeTransport server = new FakeTransport(body(200000));
+		server.breakAfter = 70000;
+		downloadBroken(new HttpUtils(server));
+		assertFalse(file.exists());
+		assertTrue(meta.exists());
+		final long kept = partial.length();
+		assertTrue(kept > 0 && kept <= 70000);
+
+		server.breakAfter = -1;
+		new HttpUtils(server).downloadInFile(URL, file, partial, null);
+		assertEquals("bytes=" + kept + "-",
+				server.last().requestHeaders.get("Range"));
+		assertEquals(server.etag, server.last().requestHeaders.get("If-Range"));
+		assertArrayEquals(server.body, read(file));
+		assertFalse(partial.exists());
+		assertFalse(meta.exists());
+	}
+
+	@Test
+	public void changedImageIsDownloadedAgainInFull() throws Exception {
+		final FakeTransport server = new FakeTransport(body(200000));
+		server.breakAfter = 70000;
+		downloadBroken(new HttpUtils(server));
+
+		final FakeTransport changed = new FakeTransport(body(150000));
+		changed.etag = "\"v2\"";
+		new HttpUtils(changed).downloadInFile(URL, file, partial, null);
+		assertArrayEquals(changed.body, read(file));
+		assertFalse(meta.exists());
+	}
+
+	@Test
+	public void nothingIsKeptWithoutAValidator() throws Exception {
+		final FakeTransport server = new FakeTransport(body(200000));
+		server.etag = null;
+		server.breakAfter = 70000;
+		downloadBroken(new HttpUtils(server));
+		assertFalse(partial.exists());
+		assertFalse(meta.exists());
+
+		server.breakAfter = -1;
+		new HttpUtils(server).downloadInFile(URL, file, partial, null);
+		assertNull(server.last().requestHeaders.get("Range"));
+		assertArrayEquals(server.body, read(file));
+	}
+
+	@Test
+	public void bodySpilledPastTheMemoryLimitResumes() throws Exception {
+		final FakeTransport server = new FakeTransport(body(200000));
+		server.breakAfter = 120000;
+		try {
+			new HttpUtils(server).downloadInMemoryOrFile(URL, file, partial,
+					100000);
+			fail();
+		} catch (IOException e) {
+			// Broke off after it went to partial.
+		}
+		assertTrue(meta.exists());
+		assertTrue(partial.length() > 0);
+
+		server.breakAfter = -1;
+		new HttpUtils(server).downloadInFile(URL, file, partial, null);
+		assertTrue(server.last().requestHeaders.containsKey("Range"));
+		assertArrayEquals(server.body, read(file));
+	}
+}
@@ -0,0 +1,221 @@
+package com.leo.threadpool;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedTaskQueueTest {
+
+    private static PriorityTaskImpl command(String category, int priority,
+                                            String group, boolean newestFirst) {
+        final PriorityTaskImpl cmd = new PriorityTaskImpl(category,
+                newestFirst, priority, new Task(), null);
+        cmd.group = group;
+        return cmd;
+    }
+
+    private static PriorityTaskImpl command(int priority) {
+        return command("screen", priority, null, false);
+    }
+
+    @Test
+    public void higherPriorityFirstThenOldestFirst() {
+        final IndexedTaskQueue queue = new IndexedTaskQueue();
+        final PriorityTaskImpl low = command(1);
+        final PriorityTaskImpl first = command(5);
+        final PriorityTaskImpl second = command(5);
+        queue.offer(low);
+        queue.offer(first);
+        queue.offer(second);
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void newestFirstCanBeSwitchedWhileQueued() {
+        final IndexedTaskQueue queue = new IndexedTaskQueue();
+        final PriorityTaskImpl first = command(5);
+        final PriorityTaskImpl second = command(5);
+        final PriorityTaskImpl third = command(5);
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+        queue.setSortByLatest(true);
+        assertSame(third, queue.poll());
+        queue.setSortByLatest(false);
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void changePriorityMovesAQueuedCommand() {
+        final IndexedTaskQueue queue = new IndexedTaskQueue();
+        final PriorityTaskImpl a = command(5);
+        final PriorityTaskImpl b = command(1);
+        queue.offer(a);
+        queue.offer(b);
+        assertTrue(queue.changePriority(b.runnable, 9));
+        assertSame(b, queue.poll());
+        assertFalse(queue.changePriority(b.runnable, 9));
+    }
+
+    @Test
+    public void removesByCategoryAndByTask() {
+        final IndexedTaskQueue queue = new IndexedTaskQueue();
+        final PriorityTaskImpl a1 = command("a", 5, null, false);
+        final PriorityTaskImpl a2 = command("a", 3, null, false);
+        final PriorityTaskImpl b = command("b", 1, null, false);
+        final PriorityTaskImpl c = command("c", 1, null, false);
+        queue.offer(a1);
+        queue.offer(a2);
+        queue.offer(b);
+        queue.offer(c);
+        assertEquals(2, queue.removeCategory("a").size());
+        assertSame(c, queue.removeTask(c.runnable));
+        assertNull(queue.removeTask(c.runnable));
+        assertEquals(1, queue.size());
+        assertFalse(queue.contains(a1));
+        assertSame(b, queue.poll());
+    }
+
+    @Test
+    public void groupsAtTheirLimitAreSkippedUntilReleased() {
+        final GroupLimiter limiter = new GroupLimiter();
+        limiter.setLimit(1);
+        final IndexedTaskQueue queue = new IndexedTaskQueue(limiter);
+        final PriorityTaskImpl a1 = command("s", 9, "a", false);
+        final PriorityTaskImpl a2 = command("s", 9, "a", false);
+        final PriorityTaskImpl b = command("s", 1, "b", false);
+        queue.offer(a1);
+        queue.offer(a2);
+        queue.offer(b);
+        assertSame(a1, queue.poll());
+        // a2 ranks higher, but its host is busy.
+        assertSame(b, queue.poll());
+        assertNull(queue.poll());
+        limiter.release(a1);
+        assertSame(a2, queue.poll());
+    }
+
+    @Test
+    public void limitIsSharedByTheQueuesOfOneLimiter() {
+        final GroupLimiter limiter = new GroupLimiter();
+        limiter.setLimit(1);
+        final IndexedTaskQueue ui = new IndexedTaskQueue(limiter);
+        final IndexedTaskQueue background = new IndexedTaskQueue(limiter);
+        final PriorityTaskImpl a1 = command("s", 9, "a", false);
+        final PriorityTaskImpl a2 = command("s", 1, "a", false);
+        ui.offer(a1);
+        background.offer(a2);
+        assertSame(a1, ui.poll());
+        assertNull(background.poll());
+        limiter.release(a1);
+        assertSame(a2, background.poll());
+    }
+
+    @Test
+    public void groupsOfOnePriorityTakeTurns() {
+        final IndexedTaskQueue queue = new IndexedTaskQueue(new GroupLimiter());
+        final PriorityTaskImpl[] a = new PriorityTaskImpl[3];
+        final PriorityTaskImpl[] b = new PriorityTaskImpl[3];
+        for (int i = 0; i < 3; i++) {
+            a[i] = command("s", 5, "a", false);
+            queue.offer(a[i]);
+        }
+        for (int i = 0; i < 3; i++) {
+            b[i] = command("s", 5, "b", false);
+            queue.offer(b[i]);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertSame(a[i], queue.poll());
+            assertSame(b[i], queue.poll());
+        }
+    }
+
+    @Test
+    public void takeWakesUpOnceTheGroupIsReleased() throws Exception {
+        final GroupLimiter limiter = new GroupLimiter();
+        limiter.setLimit(1);
+        final IndexedTaskQueue queue = new IndexedTaskQueue(limiter);
+        final PriorityTaskImpl a1 = command("s", 5, "a", false);
+        final PriorityTaskImpl a2 = command("s", 5, "a", false);
+        queue.offer(a1);
+        queue.offer(a2);
+        assertSame(a1, queue.poll());
+        final CountDownLatch taken = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (queue.take() == a2) {
+                        taken.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // Test fails on the latch.
+                }
+            }
+        }.start();
+        assertFalse(taken.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(a1);
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void reacquireWaitsForAFreeSlot() throws Exception {
+        final GroupLimiter limiter = new GroupLimiter();
+        limiter.setLimit(1);
+        final PriorityTaskImpl running = command("s", 5, "a", false);
+        final PriorityTaskImpl waiting = command("s", 5, "a", false);
+        limiter.acquire(running);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    limiter.reacquire(waiting);
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    // Test fails on the latch.
+                }
+            }
+        }.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(running);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertFalse(limiter.canRun("a"));
+    }
+
+    private static class Task implements IPriorityTask {
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public String getFlag() {
+            return null;
+        }
+
+        @Override
+        public boolean onRepeatPut(IPriorityTask newTask) {
+            return false;
+        }
+
+        @Override
+        public void isolateFlag() {
+        }
+
+        @Override
+        public boolean unregisterListener(int taskId) {
+            return false;
+        }
+    }
+}